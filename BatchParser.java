@@ -0,0 +1,62 @@
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import computation.contextfreegrammar.*;
+import computation.parser.*;
+import computation.parsetree.*;
+
+// Runs one IParser over many words at once.
+// The words are split across the worker threads of a ForkJoinPool and the results
+// are collected back in input order, so results.get(i) always belongs to words.get(i).
+// The wrapped parser must be safe to share between threads (Parser and CYKParser are).
+public class BatchParser {
+
+  private final IParser parser;
+  private final ForkJoinPool pool;
+
+  public BatchParser(IParser parser) {
+    this(parser, ForkJoinPool.commonPool());
+  }
+
+  public BatchParser(IParser parser, ForkJoinPool pool) {
+    this.parser = parser;
+    this.pool = pool;
+  }
+
+  // Recognition only, no parse trees are kept
+  public List<Boolean> isInLanguage(ContextFreeGrammar cfg, List<Word> words) {
+    return isInLanguage(cfg, words.stream());
+  }
+
+  public List<Boolean> isInLanguage(ContextFreeGrammar cfg, Stream<Word> words) {
+    return run(cfg, words, w -> parser.isInLanguage(cfg, w));
+  }
+
+  // Full parse trees, null for each word that is not in the language
+  public List<ParseTreeNode> generateParseTrees(ContextFreeGrammar cfg, List<Word> words) {
+    return generateParseTrees(cfg, words.stream());
+  }
+
+  public List<ParseTreeNode> generateParseTrees(ContextFreeGrammar cfg, Stream<Word> words) {
+    return run(cfg, words, w -> parser.generateParseTree(cfg, w));
+  }
+
+  private <T> List<T> run(ContextFreeGrammar cfg, Stream<Word> words, Function<Word, T> parse) {
+
+    // Compile up front, the way the engine does, so the workers find its entry in GrammarCache
+    // rather than all racing to compile the same grammar
+    if (parser instanceof CompilingParser) ((CompilingParser)parser).compile(cfg);
+
+    // A parallel stream started from inside a pool task runs on that pool's workers.
+    // toList() keeps encounter order, so the output lines up with the input
+    return pool
+      .submit(() -> words
+        .parallel()
+        .map(parse)
+        .collect(Collectors.toList()))
+      .join();
+  }
+}
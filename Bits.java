@@ -0,0 +1,35 @@
+// Small helpers for treating a long[] as a fixed size set of variable ids.
+// Id n lives in bit (n % 64) of word (n / 64), so membership and insert are
+// a single shift, mask and array access.
+public final class Bits {
+
+  private Bits() {}
+
+  public static int words(int size) {
+    return Math.max(1, (size + 63) >>> 6);
+  }
+
+  public static boolean contains(long[] set, int id) {
+    return (set[id >>> 6] & (1L << id)) != 0;
+  }
+
+  // Membership in the set at from..from + words(size) - 1 of an array holding several side by side
+  public static boolean contains(long[] sets, int from, int id) {
+    return (sets[from + (id >>> 6)] & (1L << id)) != 0;
+  }
+
+  public static void add(long[] set, int id) {
+    set[id >>> 6] |= 1L << id;
+  }
+
+  // Adds every id of other to set, true if that added any
+  public static boolean addAll(long[] set, long[] other) {
+    boolean added = false;
+    for (int word = 0; word < set.length; word++) {
+      long union = set[word] | other[word];
+      added |= union != set[word];
+      set[word] = union;
+    }
+    return added;
+  }
+}
@@ -0,0 +1,257 @@
+import computation.contextfreegrammar.*;
+import computation.parser.*;
+import computation.parsetree.*;
+
+// Recognizes words of CNF grammars by reducing CYK to boolean matrix multiplication,
+// after Valiant (1975) in the divide and conquer formulation of Okhotin (2014).
+//
+// Positions 0..n sit between the symbols of w, and for each variable A a bit matrix T_A has
+// T_A[i][j] set when A derives the symbols i+1..j. For a rule A -> BC, T_A gains the product
+// T_B * T_C. compute() splits the positions in half, solves both halves, then complete()
+// fills the rectangle between them by splitting it again and again, multiplying the
+// finished parts into the unfinished ones in between. Every matrix row is bit-packed, so
+// a product ORs 64 columns per instruction, and large products use Four Russians tables
+// that handle 8 rows of the right matrix per lookup.
+//
+// Every bit only ever records something true (A does derive that span), so products
+// may spill past their block into cells that are not finished yet without harm.
+public class BooleanMatrixParser implements CompilingParser {
+
+  // Rectangles with no side longer than this are completed cell by cell
+  private static final int LEAF_SIZE = 64;
+
+  // Products over at least this many rows go through Four Russians tables
+  private static final int TABLE_ROWS = 256;
+
+  // The grammar as given, which must be in CNF already
+  public CompiledGrammar compile(ContextFreeGrammar cfg) {
+    return GrammarCache.getShared().compile(cfg);
+  }
+
+  public boolean isInLanguage(ContextFreeGrammar cfg, Word w) {
+
+    CompiledGrammar grammar = compile(cfg);
+
+    if (!grammar.isValidCnfInput(w)) return false;
+
+    if (w.equals(Word.emptyWord)) return true;
+
+    SpanMatrices matrices = new SpanMatrices(grammar, w);
+    return matrices.derives(grammar.getStartVariable(), 0, w.length());
+  }
+
+  public ParseTreeNode generateParseTree(ContextFreeGrammar cfg, Word w) {
+
+    CompiledGrammar grammar = compile(cfg);
+
+    if (!grammar.isValidCnfInput(w)) return null;
+
+    if (w.equals(Word.emptyWord)) return ParseTreeNode.emptyParseTree(cfg.getStartVariable());
+
+    final SpanMatrices matrices = new SpanMatrices(grammar, w);
+    final int n = w.length();
+    if (!matrices.derives(grammar.getStartVariable(), 0, n)) return null;
+
+    // Same choice as CYKParser: the last split point, then the last rule of the variable
+    return ChartTrees.build(grammar, w, (a, i, j) -> {
+      int[] rules = grammar.getBinaryRules(a);
+      for (int k = j - 1; k >= i; k--) {
+        for (int r = rules.length - 1; r >= 0; r--) {
+          if (matrices.derives(grammar.getBinaryLeft(rules[r]), i - 1, k) &&
+              matrices.derives(grammar.getBinaryRight(rules[r]), k, j)) {
+            return ChartTrees.split(k, rules[r]);
+          }
+        }
+      }
+      return -1;
+    }, n);
+  }
+
+  // The matrices of one word, filled by the constructor
+  private static class SpanMatrices {
+    private final CompiledGrammar grammar;
+    private final int size; // positions 0..n
+    private final int words; // longs per matrix row
+    private final long[][] matrices; // matrices[a][i * words + j / 64], bit j % 64: T_a[i][j]
+    private final long[] occupied; // OR of every matrix, to skip empty cells
+
+    public SpanMatrices(CompiledGrammar grammar, Word w) {
+      this.grammar = grammar;
+      this.size = w.length() + 1;
+      this.words = Bits.words(size);
+      this.matrices = new long[grammar.getVariableCount()][size * words];
+      this.occupied = new long[size * words];
+
+      // 1. Single symbols from the rules A -> a
+      int[] encoded = grammar.encode(w);
+      for (int i = 0; i < encoded.length; i++) {
+        if (encoded[i] < 0) continue;
+        long[] producers = grammar.getTerminalRules(encoded[i]);
+        for (int a = 0; a < matrices.length; a++) {
+          if (Bits.contains(producers, a)) set(a, i, i + 1);
+        }
+      }
+
+      // 2. Everything else
+      compute(0, size);
+    }
+
+    public boolean derives(int a, int i, int j) {
+      return (matrices[a][i * words + (j >>> 6)] & (1L << j)) != 0;
+    }
+
+    private void set(int a, int i, int j) {
+      matrices[a][i * words + (j >>> 6)] |= 1L << j;
+      occupied[i * words + (j >>> 6)] |= 1L << j;
+    }
+
+    private boolean isOccupied(int i, int j) {
+      return (occupied[i * words + (j >>> 6)] & (1L << j)) != 0;
+    }
+
+    // Fills T[i][j] for all from <= i < j < to
+    private void compute(int from, int to) {
+      if (to - from < 2) return;
+      int middle = (from + to) >>> 1;
+      compute(from, middle);
+      compute(middle, to);
+      complete(from, middle, middle, to);
+    }
+
+    // Fills T[i][j] for rows r1 <= i < r2 and columns c1 <= j < c2, where r2 <= c1.
+    // Expects the triangles over [r1, r2) and [c1, c2) to be finished, and the products
+    // through every split point k with r2 <= k < c1 to be in the rectangle already
+    private void complete(int r1, int r2, int c1, int c2) {
+      if (r2 - r1 <= LEAF_SIZE && c2 - c1 <= LEAF_SIZE) {
+        completeLeaf(r1, r2, c1, c2);
+      } else if (c2 - c1 >= r2 - r1) {
+        // Left half of the columns first, then it is the split points for the right half
+        int middle = (c1 + c2) >>> 1;
+        complete(r1, r2, c1, middle);
+        multiply(r1, r2, c1, middle, middle, c2);
+        complete(r1, r2, middle, c2);
+      } else {
+        // Bottom half of the rows first, then it is the split points for the top half
+        int middle = (r1 + r2) >>> 1;
+        complete(middle, r2, c1, c2);
+        multiply(r1, middle, middle, r2, c1, c2);
+        complete(r1, middle, c1, c2);
+      }
+    }
+
+    // The remaining split points of cell (i, j) are i < k < r2, read from rows below i,
+    // and c1 <= k < j, read from columns left of j. So rows go bottom up and, within a
+    // row, each finished cell (i, k) is pushed into the columns to its right
+    private void completeLeaf(int r1, int r2, int c1, int c2) {
+      final int firstWord = c1 >>> 6;
+      final int lastWord = (c2 - 1) >>> 6;
+      for (int i = r2 - 1; i >= r1; i--) {
+        for (int k = i + 1; k < r2; k++) {
+          if (isOccupied(i, k)) pushSplit(i, k, firstWord, lastWord);
+        }
+        for (int k = c1; k < c2 - 1; k++) {
+          if (isOccupied(i, k)) pushSplit(i, k, (k + 1) >>> 6, lastWord);
+        }
+      }
+    }
+
+    // For each A -> BC with B in cell (i, k): row i of T_A |= row k of T_C, over the given words
+    private void pushSplit(int i, int k, int firstWord, int lastWord) {
+      for (int b = 0; b < matrices.length; b++) {
+        if (!derives(b, i, k)) continue;
+        int[] rights = grammar.getPairRights(b);
+        for (int pair = 0; pair < rights.length; pair++) {
+          orRows(grammar.getPairLhs(b), pair * grammar.getCellWords(), i, matrices[rights[pair]], k * words, firstWord, lastWord);
+        }
+      }
+    }
+
+    // Row i of every matrix in the set at lhsAt of lhs |= source[from + w] for the given words
+    private void orRows(long[] lhs, int lhsAt, int i, long[] source, int from, int firstWord, int lastWord) {
+      for (int a = 0; a < matrices.length; a++) {
+        if (!Bits.contains(lhs, lhsAt, a)) continue;
+        long[] target = matrices[a];
+        for (int w = firstWord; w <= lastWord; w++) {
+          long bits = source[from + w];
+          if (bits == 0) continue;
+          target[i * words + w] |= bits;
+          occupied[i * words + w] |= bits;
+        }
+      }
+    }
+
+    // T[r1..r2)[c1..c2) gains the products through the split points k1 <= k < k2
+    private void multiply(int r1, int r2, int k1, int k2, int c1, int c2) {
+      final int firstWord = c1 >>> 6;
+      final int lastWord = (c2 - 1) >>> 6;
+
+      if (r2 - r1 >= TABLE_ROWS) {
+        multiplyByTables(r1, r2, k1, k2, firstWord, lastWord);
+        return;
+      }
+
+      for (int i = r1; i < r2; i++) {
+        for (int word = k1 >>> 6; word <= (k2 - 1) >>> 6; word++) {
+          long splits = occupied[i * words + word] & rangeMask(word, k1, k2);
+          while (splits != 0) {
+            int k = (word << 6) + Long.numberOfTrailingZeros(splits);
+            splits &= splits - 1;
+            pushSplit(i, k, firstWord, lastWord);
+          }
+        }
+      }
+    }
+
+    // Four Russians: for every group of 8 split points and every right child C, tabulate
+    // the OR of each of the 256 subsets of those 8 rows of T_C. A row i of T_B then adds
+    // its whole product with the group through one lookup on the byte of T_B[i] at the group
+    private void multiplyByTables(int r1, int r2, int k1, int k2, int firstWord, int lastWord) {
+      final int width = lastWord - firstWord + 1;
+      final int variables = matrices.length;
+      long[][] tables = new long[variables][];
+
+      for (int group = k1 & ~7; group < k2; group += 8) {
+        for (int c = 0; c < variables; c++) tables[c] = null;
+
+        for (int b = 0; b < variables; b++) {
+          int[] rights = grammar.getPairRights(b);
+          if (rights.length == 0) continue;
+
+          for (int i = r1; i < r2; i++) {
+            int subset = (int)(matrices[b][i * words + (group >>> 6)] >>> (group & 63)) & 0xff;
+            if (subset == 0) continue;
+
+            for (int pair = 0; pair < rights.length; pair++) {
+              int c = rights[pair];
+              if (tables[c] == null) tables[c] = buildTable(c, group, firstWord, width);
+              orRows(grammar.getPairLhs(b), pair * grammar.getCellWords(), i, tables[c], subset * width - firstWord, firstWord, lastWord);
+            }
+          }
+        }
+      }
+    }
+
+    // table[s * width + w] = OR of row (group + bit) of T_c for each bit set in s, words firstWord..
+    private long[] buildTable(int c, int group, int firstWord, int width) {
+      long[] table = new long[256 * width];
+      for (int subset = 1; subset < 256; subset++) {
+        int bit = Integer.numberOfTrailingZeros(subset);
+        int rest = subset & (subset - 1);
+        int row = group + bit;
+        for (int w = 0; w < width; w++) {
+          long bits = row < size ? matrices[c][row * words + firstWord + w] : 0;
+          table[subset * width + w] = table[rest * width + w] | bits;
+        }
+      }
+      return table;
+    }
+
+    // The bits of word that stand for positions from <= k < to
+    private static long rangeMask(int word, int from, int to) {
+      long mask = -1L;
+      if (from > word << 6) mask &= -1L << (from & 63);
+      if (to < (word + 1) << 6) mask &= (1L << (to & 63)) - 1;
+      return mask;
+    }
+  }
+}
@@ -1,195 +1,266 @@
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import computation.contextfreegrammar.*;
 import computation.parser.*;
 import computation.parsetree.*;
 
-public class CYKParser implements IParser {
+// Only holds configuration, every call builds its own chart against a shared CompiledGrammar
+public class CYKParser implements CompilingParser {
 
-  private static Map<Symbol, List<Word>> expansionsMap;
+  // Words at least this long fill each diagonal of the table in parallel
+  public static final int DEFAULT_PARALLEL_THRESHOLD = 2000;
 
-  public boolean isInLanguage(ContextFreeGrammar cfg, Word w) {
-    return generateParseTree(cfg, w) != null;
-  }
+  // The engine name in ParseStats, see ParseEvent and ParserMetrics
+  public static final String ENGINE = "CYKParser";
 
-  public ParseTreeNode generateParseTree(ContextFreeGrammar cfg, Word w) {
+  private final int parallelThreshold;
+  private final ForkJoinPool pool;
 
-    setExpansionMap(cfg);
+  public CYKParser() {
+    this(DEFAULT_PARALLEL_THRESHOLD, ForkJoinPool.commonPool());
+  }
 
-    if (!isValidInput(cfg, w)) return null;
+  // Use Integer.MAX_VALUE as the threshold to always stay on the calling thread
+  public CYKParser(int parallelThreshold, ForkJoinPool pool) {
+    this.parallelThreshold = parallelThreshold;
+    this.pool = pool;
+  }
 
-    if (w.equals(Word.emptyWord)) return ParseTreeNode.emptyParseTree(cfg.getStartVariable());
+  // The grammar converted to CNF when it is not in CNF already, then optimized
+  public CompiledGrammar compile(ContextFreeGrammar cfg) {
+    return GrammarCache.getShared().compileOptimized(cfg);
+  }
 
-    Cell[][] cykTable = computeCyk(cfg, w);
-    final int n = w.length();
-    Cell startingCell = cykTable[1][n];
-    Variable startingVariable = cfg.getStartVariable();
-    Boolean isValid = startingCell != null && 
-                      startingCell.cellWord != null &&
-                      startingCell.cellWord.indexOfFirst(cfg.getStartVariable()) > -1;
-
-    if (!isValid) return null;
-
-    return w.length() == 1 // Handle single length words
-      ? new ParseTreeNode(startingVariable, new ParseTreeNode((Terminal)w.get(0)))
-      // This just involves walking down the left and right children of a node in the tree until we reach the bottom (terminals of the given word w)
-      // and pass the children (constructed as parsetreenodes) back up the root parent node (start variable) 
-      : new ParseTreeNode(startingVariable, resolveChildArray(recurseChildren(startingVariable, startingCell, w)));
-  } 
+  // Recognition only: fills the chart of variable sets and tests the start variable
+  // in the top cell, never looking for split points or building parse tree nodes
+  public boolean isInLanguage(ContextFreeGrammar cfg, Word w) {
+    ParseStats stats = ParseStats.start(ENGINE, w.length());
+    CompiledGrammar grammar = compile(cfg);
+    stats.mark(ParseStats.Phase.PREPARE);
+    return isInLanguage(grammar, w, stats);
+  }
 
-  private void setExpansionMap(ContextFreeGrammar cfg) {
-    expansionsMap = cfg
-      .getRules()
-      .stream()
-      .collect(Collectors.groupingBy(Rule::getVariable, 
-               Collectors.mapping(Rule::getExpansion, Collectors.toList())));
+  // The same for a grammar compiled already, such as one read by GrammarFile.load.
+  // False for a grammar not in CNF, as for isInLanguage(ContextFreeGrammar, Word)
+  public boolean isInLanguage(CompiledGrammar grammar, Word w) {
+    ParseStats stats = ParseStats.start(ENGINE, w.length());
+    stats.mark(ParseStats.Phase.PREPARE);
+    return isInLanguage(grammar, w, stats);
   }
 
-  private boolean isValidInput(ContextFreeGrammar cfg, Word w) {
-    
-    if (w.equals(Word.emptyWord)) {
-      return expansionsMap
-        .get(cfg.getStartVariable())
-        .stream()
-        .anyMatch(e -> e.equals(w));
+  private boolean isInLanguage(CompiledGrammar grammar, Word w, ParseStats stats) {
+
+    boolean accepted;
+    if (!grammar.isValidCnfInput(w)) {
+      accepted = false;
+    } else if (w.equals(Word.emptyWord)) {
+      accepted = true;
+    } else {
+      CykChart chart = computeCyk(grammar, w, ParseBudget.UNLIMITED.start(), stats);
+      accepted = chart.contains(chart.offset(1, w.length()), grammar.getStartVariable());
     }
 
-    if (w.count(new Terminal(' ')) == w.length()) return false;
+    stats.finish(accepted ? ParseResult.Status.IN_LANGUAGE : ParseResult.Status.NOT_IN_LANGUAGE);
+    return accepted;
+  }
 
-    return cfg.isInChomskyNormalForm();
+  public ParseTreeNode generateParseTree(ContextFreeGrammar cfg, Word w) {
+    return parse(cfg, w, ParseBudget.UNLIMITED).getTree();
   }
 
-  private Cell[][] computeCyk(ContextFreeGrammar cfg, Word w) {
-    
-    // Algorithm 2
-    // max i value is 2n + 1
-    // max l value is n
-    // max j value is i + j - 1 = 3n
-    // max k value is k = j - 1= 3n - 1
+  // As generateParseTree, but the chart may take at most budget.getMaxNodes() cells and
+  // budget.getMaxBytes() bytes, checked before it is allocated, and filling it may visit at most
+  // budget.getMaxSteps() split points, checked after each diagonal
+  public ParseResult parse(ContextFreeGrammar cfg, Word w, ParseBudget budget) {
+    ParseStats stats = ParseStats.start(ENGINE, w.length());
+    // Rule grouping, filtering and CNF conversion are done once per grammar, see GrammarCache
+    CompiledGrammar grammar = compile(cfg);
+    stats.mark(ParseStats.Phase.PREPARE);
+    ParseResult result = parse(grammar, w, budget, stats);
+    stats.finish(result.getStatus());
+    return result;
+  }
 
-    // 1. Create 2d array to insert variables into
-    final int n = w.length();
-    final int maxDimension = 3 * n;
-    final int rows = maxDimension;
-    final int columns = maxDimension;
-    Cell[][] table = createCellTable(rows, columns);        
-
-    // 2. Process single length rules and add them to table where they produce
-    // a substring at a given index of the word
-    List<Rule> oneLengthRules = cfg
-      .getRules()
-      .stream()
-      .filter(r -> r.getExpansion().length() == 1)
-      .collect(Collectors.toList());
+  // The same for a grammar compiled already, such as one read by GrammarFile.load
+  public ParseResult parse(CompiledGrammar grammar, Word w, ParseBudget budget) {
+    ParseStats stats = ParseStats.start(ENGINE, w.length());
+    stats.mark(ParseStats.Phase.PREPARE);
+    ParseResult result = parse(grammar, w, budget, stats);
+    stats.finish(result.getStatus());
+    return result;
+  }
 
-    for (int i = 1; i <= n; i++) {
-      Symbol wi = w.get(i - 1);
-      for (Rule rule : oneLengthRules) {
-        Symbol b = rule.getExpansion().get(0);
-        if (wi.equals(b)) {
-          table[i][i].cellWord = (table[i][i].cellWord == null
-            ? new Word(rule.getVariable())
-            : concatSymbolToWord(rule.getVariable(), table[i][i].cellWord));
-        }        
-      }
-    }
+  private ParseResult parse(CompiledGrammar grammar, Word w, ParseBudget budget, ParseStats stats) {
 
-    // 3. Process double length rules
-    List<Rule> twoLengthRules = cfg
-      .getRules()
-      .stream()
-      .filter(r -> r.getExpansion().length() == 2)
-      .collect(Collectors.toList());
+    if (!grammar.isValidCnfInput(w)) return ParseResult.notInLanguage();
 
-    for (int l = 2; l <= n; l++) {
-      for (int i = 1; i <= n + l + 1; i++) {
-        int j = i + l - 1;
-        for (int k = i; k <= j - 1; k++) {
-          for (Rule rule : twoLengthRules) {
-            Symbol b = rule.getExpansion().get(0);
-            Symbol c = rule.getExpansion().get(1);
-
-            if (table[i][k].cellWord != null && table[i][k].cellWord.indexOfFirst(b) > -1 && 
-                table[k + 1][j].cellWord != null && table[k + 1][j].cellWord.indexOfFirst(c) > -1) {
-
-              table[i][j].cellWord = (table[i][j].cellWord == null
-                ? new Word(rule.getVariable())
-                : concatSymbolToWord(rule.getVariable(), table[i][j].cellWord));
-              
-              // 4. Store state required for processing parse tree
-              // Store a reference of the left and right child and set their denoted variable via b and c
-              // Also set the resolvingIndex of the entire word within the left and right cells
-              // this means that we can find the terminal for the parse tree node at this index in the param word
-              // when we are resolving the root parse tree nodes children
-
-              table[i][j].leftCell = table[i][k];
-              table[i][j].rightCell = table[k + 1][j];
-              table[i][j].left = b;
-              table[i][j].right = c;
-              table[i][j].leftCell.resolvingIndex = i;
-              table[i][j].rightCell.resolvingIndex = j;
-            }
-          }
-        }
-      }
+    if (w.equals(Word.emptyWord)) return ParseResult.inLanguage(ChartTrees.emptyTree(grammar));
+
+    CykChart chart;
+    try {
+      chart = computeCyk(grammar, w, budget.start(), stats);
+    } catch (ParseBudget.ExceededException e) {
+      return ParseResult.budgetExceeded(e.getMessage());
     }
 
-    return table;
+    if (!chart.contains(chart.offset(1, w.length()), grammar.getStartVariable())) return ParseResult.notInLanguage();
+
+    ParseTreeNode tree = CykParseTree.tree(grammar, chart, w);
+    stats.mark(ParseStats.Phase.TREE);
+    return ParseResult.inLanguage(tree);
+  } 
+
+  // The parse tree generateParseTree gives, with its nodes only built when asked for, see CykParseTree.
+  // Null when w is not in the language
+  public CykParseTree generateLazyParseTree(ContextFreeGrammar cfg, Word w) {
+
+    CompiledGrammar grammar = compile(cfg);
+
+    if (!grammar.isValidCnfInput(w)) return null;
+
+    if (w.equals(Word.emptyWord)) return new CykParseTree(grammar, new CykChart(0, grammar.getCellWords()), w);
+
+    CykChart chart = computeCyk(grammar, w, ParseBudget.UNLIMITED.start(), ParseStats.OFF);
+    if (!chart.contains(chart.offset(1, w.length()), grammar.getStartVariable())) return null;
+
+    return new CykParseTree(grammar, chart, w);
   }
 
-  private Cell[][] createCellTable(int rows, int columns) {
-    Cell[][] table = new Cell[rows][columns];
-    for (int i = 0; i <= rows - 1; i++)
-      for (int j = 0; j <= columns - 1; j++)
-        table[i][j] = new Cell();
+  // Every parse tree of w at once, sharing common subtrees, null when w is not in the language
+  public ParseForest generateParseForest(ContextFreeGrammar cfg, Word w) {
+
+    // The grammar as given: merging variables would merge their trees too, see GrammarCache.compileOptimized
+    ParseStats stats = ParseStats.start(ENGINE, w.length());
+    CompiledGrammar grammar = GrammarCache.getShared().compile(cfg);
+    stats.mark(ParseStats.Phase.PREPARE);
+
+    boolean valid = grammar.isValidCnfInput(w);
+    ParseForest forest = null;
+    if (valid && w.equals(Word.emptyWord)) {
+      forest = new ParseForest(grammar, null, w);
+    } else if (valid) {
+      CykChart chart = computeCyk(grammar, w, ParseBudget.UNLIMITED.start(), stats);
+      if (chart.contains(chart.offset(1, w.length()), grammar.getStartVariable())) {
+        forest = new ParseForest(grammar, chart, w);
+        stats.mark(ParseStats.Phase.TREE);
+      }
+    }
 
-    return table;
+    stats.finish(forest != null ? ParseResult.Status.IN_LANGUAGE : ParseResult.Status.NOT_IN_LANGUAGE);
+    return forest;
   }
 
-  private Word concatSymbolToWord(Symbol s, Word w) {
-    return new Word(Stream.concat(w.stream(), Arrays.stream(new Symbol[] { s })).toArray(Symbol[]::new));
+  // Number of distinct parse trees of w modulo 2^64, 0 when w is not in the language
+  public long countParseTrees(ContextFreeGrammar cfg, Word w) {
+    ParseForest forest = generateParseForest(cfg, w);
+    return forest == null ? 0 : forest.countTrees();
   }
 
-  private ParseTreeNode[] resolveChildArray(ParseTreeNode[] childArray) {
-    return childArray[1] == null ? new ParseTreeNode[] { childArray[0] } : childArray;
+  public BigInteger countParseTreesExact(ContextFreeGrammar cfg, Word w) {
+    ParseForest forest = generateParseForest(cfg, w);
+    return forest == null ? BigInteger.ZERO : forest.countTreesExact();
   }
-  
-  private ParseTreeNode[] recurseChildren(Symbol parentSymbol, Cell cykCell, Word w) {
 
-    ParseTreeNode[] children = new ParseTreeNode[2];
+  private CykChart computeCyk(CompiledGrammar grammar, Word w, ParseBudget.Meter meter, ParseStats stats) {
+    
+    // Algorithm 2
+    // 1 <= i <= j <= n, where (i, j) is the span of w from its ith to its jth symbol
+    // l = j - i + 1 is the span length and k, i <= k < j, the split point
 
-    Boolean leftNull = cykCell.left == null;
-    Boolean rightNull = cykCell.right == null;
+    // 1. Create the triangular chart to insert variables into, once the budget allows for it
+    final int n = w.length();
+    meter.addNodes(CykChart.spanCount(n), CykChart.estimateBytes(n, grammar.getCellWords()));
+    CykChart chart = new CykChart(n, grammar.getCellWords());
 
-    if (leftNull && rightNull) {
-      // Base recursion case, we know this is a terminal, therefore safe to cast
-      int index = cykCell.resolvingIndex;
-      children[0] = new ParseTreeNode((Terminal)w.subword(index - 1, index).get(0));
-      return children;
+    // 2. Process single length rules and add them to the chart where they produce
+    // a substring at a given index of the word. Each terminal id already maps to
+    // the set of variables producing it, so the cell is a copy of that set
+    int[] encoded = grammar.encode(w);
+    for (int i = 1; i <= n; i++) {
+      fillSymbol(grammar, chart, i, encoded[i - 1]);
+      stats.cellFilled(0, 0, !chart.isEmpty(chart.offset(i, i)));
     }
+    stats.mark(ParseStats.Phase.TERMINAL_FILL);
 
-    if (!leftNull) {
-      children[0] = new ParseTreeNode(cykCell.left, resolveChildArray(recurseChildren(cykCell.left, cykCell.leftCell, w)));
+    // 3. Process double length rules
+    // A cell only reads cells of shorter span lengths, so all cells on one diagonal (same l)
+    // are independent of each other. For long words each diagonal is split across the pool.
+    // The split points visited are charged to the budget once per diagonal, from this thread
+    for (int l = 2; l <= n; l++) {
+      final int length = l;
+      long splits = 0;
+      if (n >= parallelThreshold) {
+        splits = pool.submit(() -> IntStream
+          .rangeClosed(1, n - length + 1)
+          .parallel()
+          .mapToLong(i -> fillCell(grammar, chart, i, i + length - 1, stats))
+          .sum())
+          .join();
+      } else {
+        for (int i = 1; i <= n - l + 1; i++) {
+          splits += fillCell(grammar, chart, i, i + l - 1, stats);
+        }
+      }
+      meter.addSteps(splits);
     }
+    stats.mark(ParseStats.Phase.BINARY_FILL);
 
-    if (!rightNull) {
-      children[1] = new ParseTreeNode(cykCell.right, resolveChildArray(recurseChildren(cykCell.right, cykCell.rightCell, w)));
-    }
+    return chart;
+  }
 
-    return children;
+  // Fills span (i, i) with the variables producing terminal id t, -1 for none of the grammar's
+  static void fillSymbol(CompiledGrammar grammar, CykChart chart, int i, int t) {
+    if (t < 0) return; // Not a terminal of the grammar, so nothing produces it
+    chart.set(chart.offset(i, i), grammar.getTerminalRules(t));
+    if (!chart.isEmpty(chart.offset(i, i))) chart.markNonEmpty(i, i);
   }
 
-  // Simple class just to store state
-  private class Cell {
-    public Word cellWord;
-    public Cell leftCell;
-    public Cell rightCell;
-    public Symbol left;
-    public Symbol right;
-    public int resolvingIndex;
+  // Fills span (i, j) from every split point k, writing to no other span.
+  // Only split points with both halves non-empty are visited (see CykChart.splits). Then rather
+  // than testing every rule, walk the variables b present in the left span and only look at
+  // the pairs (b, c) the grammar has a rule for, adding all their left hand sides at once.
+  // CykSession refills the spans an edit reaches through here too.
+  // Returns the number of split points visited, and counts the pairs (b, c) tested and found into stats
+  static int fillCell(CompiledGrammar grammar, CykChart chart, int i, int j, ParseStats stats) {
+    final int cellWords = chart.getCellWords();
+    final long cell = chart.offset(i, j);
+    int visited = 0;
+    long checks = 0;
+    long applications = 0;
+    for (int splitWord = i >>> 6; splitWord <= (j - 1) >>> 6; splitWord++) {
+      long splits = chart.splits(i, j, splitWord);
+      while (splits != 0) {
+        int k = (splitWord << 6) + Long.numberOfTrailingZeros(splits);
+        splits &= splits - 1;
+        visited++;
+        long left = chart.offset(i, k);
+        long right = chart.offset(k + 1, j);
+
+        for (int word = 0; word < cellWords; word++) {
+          long leftVariables = chart.getWord(left, word);
+          while (leftVariables != 0) {
+            int b = (word << 6) + Long.numberOfTrailingZeros(leftVariables);
+            leftVariables &= leftVariables - 1;
+
+            int[] rights = grammar.getPairRights(b);
+            long[] lhs = grammar.getPairLhs(b);
+            checks += rights.length;
+            for (int pair = 0; pair < rights.length; pair++) {
+              if (chart.contains(right, rights[pair])) {
+                chart.addAll(cell, lhs, pair * cellWords);
+                applications++;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    boolean nonEmpty = !chart.isEmpty(cell);
+    if (nonEmpty) chart.markNonEmpty(i, j);
+    stats.cellFilled(checks, applications, nonEmpty);
+    return visited;
   }
 }
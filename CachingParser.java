@@ -0,0 +1,84 @@
+import computation.contextfreegrammar.*;
+import computation.parser.*;
+import computation.parsetree.*;
+
+// Answers words seen before from a ResultCache, and passes the rest on to the parser it wraps:
+//   IParser parser = new CachingParser(new CYKParser(), new ResultCache(64 << 20, ResultCache.Eviction.TINY_LFU, true));
+// A repeated word costs encoding it and a lookup, against filling a chart for it.
+// generateParseTree asks the parser again for a word the cache only knows to be in the
+// language, when it does not keep trees or the entry came from isInLanguage, and then keeps the tree;
+// the cache counts such a lookup as a miss.
+// One cache can serve several CachingParsers, entries are kept apart by the class of the parser.
+// Words are keyed by the grammar as the wrapped engine compiles it (see CompilingParser), so
+// the cache adds no compiled grammar of its own.
+public class CachingParser implements CompilingParser {
+
+  private final IParser parser;
+  private final ResultCache cache;
+  private final String engine;
+  private volatile Fingerprinted last; // the grammar of the last call, to skip GrammarCache for it
+
+  public CachingParser(IParser parser, ResultCache cache) {
+    this.parser = parser;
+    this.cache = cache;
+    this.engine = parser.getClass().getName();
+  }
+
+  public IParser getParser() {
+    return parser;
+  }
+
+  public ResultCache getCache() {
+    return cache;
+  }
+
+  // The wrapped engine's grammar, or for an engine that cannot say, the grammar as given
+  public CompiledGrammar compile(ContextFreeGrammar cfg) {
+    if (parser instanceof CompilingParser) return ((CompilingParser)parser).compile(cfg);
+    return GrammarCache.getShared().compile(cfg);
+  }
+
+  public boolean isInLanguage(ContextFreeGrammar cfg, Word w) {
+    ResultCache.Key key = key(cfg, w);
+    if (key == null) return parser.isInLanguage(cfg, w);
+
+    ResultCache.Entry entry = cache.get(key);
+    if (entry != null) return entry.isAccepted();
+
+    boolean accepted = parser.isInLanguage(cfg, w);
+    cache.put(key, accepted, null);
+    return accepted;
+  }
+
+  public ParseTreeNode generateParseTree(ContextFreeGrammar cfg, Word w) {
+    ResultCache.Key key = key(cfg, w);
+    if (key == null) return parser.generateParseTree(cfg, w);
+
+    ResultCache.Entry entry = cache.get(key, true);
+    if (entry != null && (!entry.isAccepted() || entry.getTree() != null)) return entry.getTree();
+
+    ParseTreeNode tree = parser.generateParseTree(cfg, w);
+    cache.put(key, tree != null, tree);
+    return tree;
+  }
+
+  // The grammar's fingerprint comes from its compiled form, made once per grammar, see GrammarCache
+  private ResultCache.Key key(ContextFreeGrammar cfg, Word w) {
+    Fingerprinted grammar = last;
+    if (grammar == null || grammar.cfg != cfg) {
+      grammar = new Fingerprinted(cfg, compile(cfg));
+      last = grammar;
+    }
+    return cache.key(engine, grammar.compiled, w);
+  }
+
+  private static final class Fingerprinted {
+    private final ContextFreeGrammar cfg;
+    private final CompiledGrammar compiled;
+
+    Fingerprinted(ContextFreeGrammar cfg, CompiledGrammar compiled) {
+      this.cfg = cfg;
+      this.compiled = compiled;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import computation.contextfreegrammar.*;
+import computation.parsetree.*;
+
+// Builds a ParseTreeNode from any chart that can say how a variable derives a span.
+// Spans are given as (i, j), the ith to jth symbol of the word counting from 1.
+// The walk uses an explicit stack rather than recursion, as parse trees of long words
+// (left recursive expressions especially) are as deep as the word is long.
+// Nodes are labelled with original variables (see CompiledGrammar.getOriginalVariable), followed
+// down from the root alongside the compiled ones, so trees of an optimized grammar still read
+// in the names of the grammar as given. A grammar converted to CNF has its trees restored by
+// its CnfGrammar, which builds them through the same NodeFactory as plain ones.
+public final class ChartTrees {
+
+  public interface SplitFinder {
+    // Some split point k and binary rule a -> bc (its number in CompiledGrammar) such that
+    // b derives span (i, k) and c derives span (k + 1, j), packed as (k << 32) | rule, or -1 if none
+    long findSplit(int a, int i, int j);
+  }
+
+  // Makes the nodes of a tree, children before their parent
+  public interface NodeFactory<T> {
+    // A node of variable a by the rule a -> t
+    T leaf(Variable a, Terminal t);
+
+    // A node of variable a by the rule a -> bc, over the nodes of b and c
+    T node(Variable a, Variable b, Variable c, T left, T right);
+  }
+
+  // Nodes with the labels they are given
+  public static final NodeFactory<ParseTreeNode> NODES = new NodeFactory<ParseTreeNode>() {
+    public ParseTreeNode leaf(Variable a, Terminal t) {
+      return new ParseTreeNode(a, new ParseTreeNode(t));
+    }
+
+    public ParseTreeNode node(Variable a, Variable b, Variable c, ParseTreeNode left, ParseTreeNode right) {
+      return new ParseTreeNode(a, left, right);
+    }
+  };
+
+  private ChartTrees() {}
+
+  public static long split(int k, int rule) {
+    return ((long)k << 32) | rule;
+  }
+
+  // The tree of the empty word, for a grammar that derives it
+  public static ParseTreeNode emptyTree(CompiledGrammar grammar) {
+    CnfGrammar conversion = grammar.getConversion();
+    if (conversion != null) return conversion.getEmptyTree();
+    return ParseTreeNode.emptyParseTree(grammar.getOriginalVariable(grammar.getStartVariable()));
+  }
+
+  // The tree of the start variable deriving span (1, n), where the chart already says that it
+  // does, in the grammar as given
+  public static ParseTreeNode build(CompiledGrammar grammar, Word w, SplitFinder finder, int n) {
+    int start = grammar.getStartVariable();
+    CnfGrammar conversion = grammar.getConversion();
+    if (conversion == null) return build(grammar, w, finder, start, start, 1, n, NODES);
+    return build(grammar, w, finder, start, start, 1, n, conversion).getTree();
+  }
+
+  // The tree of variable a deriving span (i, j), where the chart already says that it does,
+  // its root labelled with original variable ov (one merged into a), made by nodes
+  public static <T> T build(CompiledGrammar grammar, Word w, SplitFinder finder, int a, int ov, int i, int j, NodeFactory<T> nodes) {
+
+    Deque<int[]> pending = new ArrayDeque<int[]>(); // { variable, original, i, j, rule or -1 while not expanded }
+    Deque<T> built = new ArrayDeque<T>();
+    pending.push(new int[] { a, ov, i, j, -1 });
+
+    while (!pending.isEmpty()) {
+      int[] node = pending.peek();
+      Variable variable = grammar.getOriginalVariable(node[1]);
+
+      // 1. Single symbol spans come from a rule variable -> terminal
+      if (node[2] == node[3]) {
+        pending.pop();
+        built.push(nodes.leaf(variable, (Terminal)w.get(node[2] - 1)));
+        continue;
+      }
+
+      // 2. First visit: find the split and queue both children, left on top so it is built first
+      if (node[4] < 0) {
+        long split = finder.findSplit(node[0], node[2], node[3]);
+        if (split < 0) throw new IllegalStateException("No split for " + variable + " over (" + node[2] + ", " + node[3] + ")");
+        int k = (int)(split >>> 32), rule = (int)split;
+        node[4] = rule;
+        pending.push(new int[] { grammar.getBinaryRight(rule), grammar.getOriginalRight(node[1], rule), k + 1, node[3], -1 });
+        pending.push(new int[] { grammar.getBinaryLeft(rule), grammar.getOriginalLeft(node[1], rule), node[2], k, -1 });
+        continue;
+      }
+
+      // 3. Second visit: both children are built, right one on top
+      pending.pop();
+      T right = built.pop();
+      T left = built.pop();
+      int rule = node[4];
+      built.push(nodes.node(variable, grammar.getOriginalVariable(grammar.getOriginalLeft(node[1], rule)),
+        grammar.getOriginalVariable(grammar.getOriginalRight(node[1], rule)), left, right));
+    }
+
+    return built.pop();
+  }
+}
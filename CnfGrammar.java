@@ -0,0 +1,637 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import computation.contextfreegrammar.*;
+import computation.parsetree.*;
+
+// A grammar in Chomsky normal form for the language of any ContextFreeGrammar, so the CNF engines
+// take grammars as written (see GrammarCache.compileCnf), and the way back from its parse trees
+// to trees of the grammar as given.
+//
+// The textbook steps, with BIN moved before DEL so that leaving out nullable symbols never has
+// more than two of them to choose from, rather than every subset of a long rule:
+// 1. START: a new start variable S0 -> S, when S appears on some right hand side
+// 2. BIN: A -> X1 X2 .. Xk becomes A -> X1 H with H -> X2 .. Xk, split the same way. A helper H
+//    stands for its symbols wherever they end a rule, so the rules grow by at most their length
+// 3. DEL: each rule is kept with every choice of its nullable symbols left out, but not with all
+//    of them left out, except for the start variable
+// 4. UNIT: A -> B gives way to every other rule of every B that A reaches through unit rules
+// 5. TERM: a terminal a in a rule A -> XY is replaced by a variable T -> a of its own
+// Each rule of the result keeps the unit rules and the rule of step 3 it came from, and each of
+// those the rule of step 2 and which of its symbols it left out. Restoring a tree walks that back:
+// S0 and the helpers are spliced into their parents, T variables become their terminal, symbols
+// left out get a fixed tree of the empty word, and what is left are the rules as given.
+//
+// What restoring needs is kept as int tables over numbered symbols, the same whether converted
+// here or read back by GrammarFile.load, which saves them as they are. The lookups over them, the
+// trees of the empty word and, once loaded, the grammar as given are built the first time they
+// are used. One instance can be shared by any number of threads.
+public final class CnfGrammar implements ChartTrees.NodeFactory<CnfGrammar.Restored> {
+
+  // The second symbol of the key of a rule A -> t, which has none
+  private static final int NONE = Integer.MIN_VALUE;
+
+  private volatile ContextFreeGrammar original; // built from the tables on first use once loaded
+  private final ContextFreeGrammar converted;
+
+  // Every symbol by its number, as CompiledGrammar numbers rule symbols: variables from 0 and
+  // terminal t as -(t + 1)
+  private final Variable[] variables;
+  private final Terminal[] terminals;
+
+  // The grammar as given. Rule r is givenRuleSymbols[givenRuleStart[r] .. givenRuleStart[r + 1]),
+  // its lhs first, and the rules of step 2 are laid out the same way with their lhs apart
+  private final int givenStart;
+  private final int[] givenVariables;
+  private final int[] givenTerminals;
+  private final int[] givenRuleStart;
+  private final int[] givenRuleSymbols;
+
+  private final int start; // S0, or the start variable as given when it needs no replacing
+  private final boolean[] spliced; // by variable: S0 and the helpers
+  private final int[] terminalVariables; // by terminal: its T variable, or -1
+
+  // Rules of step 2, over the symbols as given, S0 and the helpers
+  private final int[] binLhs;
+  private final int[] binStart;
+  private final int[] binSymbols;
+
+  // Rules of step 3: their left hand side, the rule of step 2 they came from and the positions
+  // of its symbols they leave out, as a bitmask
+  private final int[] delLhs;
+  private final int[] delFrom;
+  private final int[] delErased;
+
+  // For each rule k of the result, keyed by originKeys[3k .. 3k + 3) = lhs and its symbols, NONE
+  // for a missing second: the rules of step 3 it came from, chains[chainStart[k] .. chainStart[k + 1]),
+  // the unit ones from its left hand side down and then the one that gave its symbols
+  private final int[] originKeys;
+  private final int[] chainStart;
+  private final int[] chains;
+
+  // The rules of step 2 that showed each nullable variable nullable, in the order they were
+  // found, so each tree of the empty word is built from those before it
+  private final int[] emptyRules;
+
+  private volatile Index index;
+
+  public CnfGrammar(ContextFreeGrammar cfg) {
+    Conversion conversion = new Conversion(cfg);
+    this.original = cfg;
+    this.converted = conversion.converted;
+    SymbolTable symbols = new SymbolTable();
+
+    // The grammar as given, its sets in order of name so equal grammars write equal bytes
+    this.givenStart = symbols.id(cfg.getStartVariable());
+    List<Variable> givenVariables = new ArrayList<Variable>(cfg.getVariables());
+    givenVariables.sort((a, b) -> a.toString().compareTo(b.toString()));
+    List<Terminal> givenTerminals = new ArrayList<Terminal>(cfg.getTerminals());
+    givenTerminals.sort((a, b) -> a.toString().compareTo(b.toString()));
+    this.givenVariables = symbols.ids(givenVariables);
+    this.givenTerminals = symbols.ids(givenTerminals);
+    int[][] givenRules = new int[cfg.getRules().size()][];
+    for (int r = 0; r < givenRules.length; r++) {
+      Rule rule = cfg.getRules().get(r);
+      givenRules[r] = symbols.rule(rule.getVariable(), symbols(rule.getExpansion()));
+    }
+    this.givenRuleStart = starts(givenRules);
+    this.givenRuleSymbols = concat(givenRules);
+    this.start = symbols.id(conversion.start);
+
+    int[] splicedIds = symbols.ids(conversion.spliced);
+    int[] tTerminals = symbols.ids(conversion.terminalVariables.keySet());
+    int[] tVariables = symbols.ids(conversion.terminalVariables.values());
+
+    this.binLhs = symbols.ids(conversion.binLhs);
+    int[][] binBodies = new int[binLhs.length][];
+    for (int r = 0; r < binBodies.length; r++) binBodies[r] = symbols.ids(Arrays.asList(conversion.binBody.get(r)));
+    this.binStart = starts(binBodies);
+    this.binSymbols = concat(binBodies);
+    this.delLhs = symbols.ids(conversion.delLhs);
+    this.delFrom = conversion.delFrom.stream().mapToInt(Integer::intValue).toArray();
+    this.delErased = conversion.delErased.stream().mapToInt(Integer::intValue).toArray();
+
+    this.originKeys = new int[3 * conversion.origins.size()];
+    int[][] originChains = new int[conversion.origins.size()][];
+    int k = 0;
+    for (Map.Entry<List<Symbol>, int[]> entry : conversion.origins.entrySet()) {
+      List<Symbol> key = entry.getKey();
+      for (int x = 0; x < 3; x++) originKeys[3 * k + x] = x < key.size() ? symbols.id(key.get(x)) : NONE;
+      originChains[k++] = entry.getValue();
+    }
+    this.chainStart = starts(originChains);
+    this.chains = concat(originChains);
+    this.emptyRules = conversion.emptyRules.stream().mapToInt(Integer::intValue).toArray();
+
+    this.variables = symbols.variables.toArray(new Variable[0]);
+    this.terminals = symbols.terminals.toArray(new Terminal[0]);
+    this.spliced = new boolean[variables.length];
+    for (int v : splicedIds) spliced[v] = true;
+    this.terminalVariables = new int[terminals.length];
+    Arrays.fill(terminalVariables, -1);
+    for (int t = 0; t < tTerminals.length; t++) terminalVariables[-(tTerminals[t] + 1)] = tVariables[t];
+  }
+
+  // A conversion read back by GrammarFile.load, in the order write puts it. It has no converted
+  // grammar, see getGrammar
+  CnfGrammar(GrammarFile.Reader in) {
+    this.original = null;
+    this.converted = null;
+    this.variables = new Variable[in.getInt()];
+    for (int v = 0; v < variables.length; v++) variables[v] = new Variable(in.getString());
+    this.terminals = new Terminal[in.getInt()];
+    for (int t = 0; t < terminals.length; t++) terminals[t] = new Terminal(in.getChar());
+
+    this.givenStart = in.getInt();
+    this.givenVariables = in.getInts();
+    this.givenTerminals = in.getInts();
+    this.givenRuleStart = in.getInts();
+    this.givenRuleSymbols = in.getInts();
+    this.start = in.getInt();
+    this.spliced = in.getBooleans();
+    this.terminalVariables = in.getInts();
+
+    this.binLhs = in.getInts();
+    this.binStart = in.getInts();
+    this.binSymbols = in.getInts();
+    this.delLhs = in.getInts();
+    this.delFrom = in.getInts();
+    this.delErased = in.getInts();
+
+    this.originKeys = in.getInts();
+    this.chainStart = in.getInts();
+    this.chains = in.getInts();
+    this.emptyRules = in.getInts();
+  }
+
+  // Writes the tables for the constructor above to read back, the names of the symbols first
+  void write(GrammarFile.Writer out) {
+    out.putInt(variables.length);
+    for (Variable variable : variables) out.putString(variable.toString());
+    out.putInt(terminals.length);
+    for (Terminal terminal : terminals) out.putChar(terminal.toString().charAt(0));
+
+    out.putInt(givenStart);
+    out.putInts(givenVariables);
+    out.putInts(givenTerminals);
+    out.putInts(givenRuleStart);
+    out.putInts(givenRuleSymbols);
+    out.putInt(start);
+    out.putBooleans(spliced);
+    out.putInts(terminalVariables);
+
+    out.putInts(binLhs);
+    out.putInts(binStart);
+    out.putInts(binSymbols);
+    out.putInts(delLhs);
+    out.putInts(delFrom);
+    out.putInts(delErased);
+
+    out.putInts(originKeys);
+    out.putInts(chainStart);
+    out.putInts(chains);
+    out.putInts(emptyRules);
+  }
+
+  public ContextFreeGrammar getOriginal() {
+    ContextFreeGrammar result = original;
+    if (result == null) original = result = given();
+    return result;
+  }
+
+  // The start variable as given, without building the grammar as given
+  public Variable getOriginalStartVariable() {
+    return variables[givenStart];
+  }
+
+  // The grammar in CNF, null for a conversion read back by GrammarFile.load
+  public ContextFreeGrammar getGrammar() {
+    return converted;
+  }
+
+  // The tree of the empty word in the grammar as given, null if it has none
+  public ParseTreeNode getEmptyTree() {
+    Restored tree = index().empty[start];
+    return tree == null ? null : tree.getTree();
+  }
+
+  public Restored leaf(Variable a, Terminal t) {
+    Index index = index();
+    Restored terminal = new Restored(new ParseTreeNode(t));
+    int lhs = index.id(a), symbol = index.id(t);
+    return terminalVariables[-(symbol + 1)] == lhs ? terminal : restore(index, lhs, symbol, NONE, terminal);
+  }
+
+  public Restored node(Variable a, Variable b, Variable c, Restored left, Restored right) {
+    Index index = index();
+    return restore(index, index.id(a), index.id(b), index.id(c), left, right);
+  }
+
+  // The rule of the result lhs -> first second back to the rules as given, from the last rule of
+  // its chain up
+  private Restored restore(Index index, int lhs, int first, int second, Restored... children) {
+    int k = index.find(lhs, first, second);
+    if (k < 0) {
+      String body = symbol(first) + (second == NONE ? "" : " " + symbol(second));
+      throw new IllegalArgumentException("No rule " + variables[lhs] + " -> " + body + " in the converted grammar");
+    }
+
+    Restored current = null;
+    int last = chainStart[k + 1] - 1;
+    for (int c = last; c >= chainStart[k]; c--) {
+      int r = chains[c];
+      int from = binStart[delFrom[r]], length = binStart[delFrom[r] + 1] - from;
+      List<Restored> parts = new ArrayList<Restored>(length);
+      int child = 0;
+      for (int p = 0; p < length; p++) {
+        if ((delErased[r] & (1 << p)) != 0) parts.add(index.empty[binSymbols[from + p]]);
+        else parts.add(c == last ? children[child++] : current);
+      }
+      current = wrap(delLhs[r], parts);
+    }
+    return current;
+  }
+
+  // A node of variable over the parts, or just the parts for a variable that is spliced away
+  private Restored wrap(int variable, List<Restored> parts) {
+    Restored joined = new Restored(parts);
+    if (spliced[variable]) return joined;
+    ParseTreeNode node = joined.nodes.length == 0
+      ? ParseTreeNode.emptyParseTree(variables[variable])
+      : new ParseTreeNode(variables[variable], joined.nodes);
+    return new Restored(node, variables[variable], joined.covering > 0);
+  }
+
+  private Symbol symbol(int id) {
+    return id < 0 ? terminals[-(id + 1)] : variables[id];
+  }
+
+  // The grammar as given, from its tables
+  private ContextFreeGrammar given() {
+    Set<Variable> vs = new LinkedHashSet<Variable>();
+    for (int v : givenVariables) vs.add(variables[v]);
+    Set<Terminal> ts = new LinkedHashSet<Terminal>();
+    for (int t : givenTerminals) ts.add((Terminal)symbol(t));
+    List<Rule> rules = new ArrayList<Rule>();
+    for (int r = 0; r + 1 < givenRuleStart.length; r++) {
+      int from = givenRuleStart[r];
+      Symbol[] body = new Symbol[givenRuleStart[r + 1] - from - 1];
+      for (int x = 0; x < body.length; x++) body[x] = symbol(givenRuleSymbols[from + 1 + x]);
+      rules.add(new Rule(variables[givenRuleSymbols[from]], body.length == 0 ? Word.emptyWord : new Word(body)));
+    }
+    return new ContextFreeGrammar(vs, ts, rules, variables[givenStart]);
+  }
+
+  // Built by the first tree restored. Two threads racing build equal ones, and either is kept
+  private Index index() {
+    Index result = index;
+    if (result == null) index = result = new Index();
+    return result;
+  }
+
+  // The lookups restoring goes through: each symbol's number, the rules of the result in an open
+  // addressing table of k + 1 by their key, and the tree of the empty word of each nullable variable
+  private final class Index {
+    private final Map<Symbol, Integer> ids = new HashMap<Symbol, Integer>();
+    private final int[] slots;
+    private final Restored[] empty = new Restored[variables.length];
+
+    Index() {
+      for (int v = 0; v < variables.length; v++) ids.put(variables[v], v);
+      for (int t = 0; t < terminals.length; t++) ids.put(terminals[t], -(t + 1));
+
+      int count = originKeys.length / 3;
+      slots = new int[Integer.highestOneBit(Math.max(count, 1)) << 2];
+      for (int k = 0; k < count; k++) {
+        int s = slot(originKeys[3 * k], originKeys[3 * k + 1], originKeys[3 * k + 2]);
+        while (slots[s] != 0) s = (s + 1) & (slots.length - 1);
+        slots[s] = k + 1;
+      }
+
+      for (int r : emptyRules) {
+        List<Restored> parts = new ArrayList<Restored>();
+        for (int x = binStart[r]; x < binStart[r + 1]; x++) parts.add(empty[binSymbols[x]]);
+        empty[binLhs[r]] = wrap(binLhs[r], parts);
+      }
+    }
+
+    int id(Symbol symbol) {
+      Integer id = ids.get(symbol);
+      if (id == null) throw new IllegalArgumentException("No symbol " + symbol + " in the converted grammar");
+      return id;
+    }
+
+    // The rule of the result with that key, or -1
+    int find(int lhs, int first, int second) {
+      for (int s = slot(lhs, first, second); slots[s] != 0; s = (s + 1) & (slots.length - 1)) {
+        int k = slots[s] - 1;
+        if (originKeys[3 * k] == lhs && originKeys[3 * k + 1] == first && originKeys[3 * k + 2] == second) return k;
+      }
+      return -1;
+    }
+
+    private int slot(int lhs, int first, int second) {
+      int hash = ((lhs * 0x9e3779b1 + first) * 0x9e3779b1 + second) * 0x9e3779b1;
+      return (hash ^ (hash >>> 16)) & (slots.length - 1);
+    }
+  }
+
+  private static Symbol[] symbols(Word w) {
+    Symbol[] symbols = new Symbol[w.length()];
+    for (int i = 0; i < symbols.length; i++) symbols[i] = w.get(i);
+    return symbols;
+  }
+
+  // Where each row starts in the rows laid end to end, and one past the last
+  private static int[] starts(int[][] rows) {
+    int[] starts = new int[rows.length + 1];
+    for (int r = 0; r < rows.length; r++) starts[r + 1] = starts[r] + rows[r].length;
+    return starts;
+  }
+
+  private static int[] concat(int[][] rows) {
+    int[] all = new int[starts(rows)[rows.length]];
+    int at = 0;
+    for (int[] row : rows) {
+      System.arraycopy(row, 0, all, at, row.length);
+      at += row.length;
+    }
+    return all;
+  }
+
+  // Numbers symbols as they are first met
+  private static final class SymbolTable {
+    private final List<Variable> variables = new ArrayList<Variable>();
+    private final List<Terminal> terminals = new ArrayList<Terminal>();
+    private final Map<Symbol, Integer> ids = new HashMap<Symbol, Integer>();
+
+    int id(Symbol symbol) {
+      Integer id = ids.get(symbol);
+      if (id == null) {
+        if (symbol.isTerminal()) {
+          terminals.add((Terminal)symbol);
+          id = -terminals.size();
+        } else {
+          variables.add((Variable)symbol);
+          id = variables.size() - 1;
+        }
+        ids.put(symbol, id);
+      }
+      return id;
+    }
+
+    int[] ids(Collection<? extends Symbol> symbols) {
+      return symbols.stream().mapToInt(this::id).toArray();
+    }
+
+    // A rule as lhs, then its symbols
+    int[] rule(Symbol lhs, Symbol[] body) {
+      int[] rule = new int[body.length + 1];
+      rule[0] = id(lhs);
+      for (int x = 0; x < body.length; x++) rule[x + 1] = id(body[x]);
+      return rule;
+    }
+  }
+
+  // The conversion itself, over symbols, which the constructor then numbers into the tables
+  private static final class Conversion {
+    private final ContextFreeGrammar converted;
+    private final Variable start;
+    private final Set<Variable> variables = new HashSet<Variable>(); // every name taken, old and new
+    private final Map<String, Integer> nextIndex = new HashMap<String, Integer>();
+    private final Set<Variable> spliced = new LinkedHashSet<Variable>();
+    private final Map<Terminal, Variable> terminalVariables = new LinkedHashMap<Terminal, Variable>();
+
+    private final List<Variable> binLhs = new ArrayList<Variable>();
+    private final List<Symbol[]> binBody = new ArrayList<Symbol[]>();
+
+    private final List<Variable> delLhs = new ArrayList<Variable>();
+    private final List<Symbol[]> delBody = new ArrayList<Symbol[]>();
+    private final List<Integer> delFrom = new ArrayList<Integer>();
+    private final List<Integer> delErased = new ArrayList<Integer>();
+
+    private final Map<List<Symbol>, int[]> origins = new LinkedHashMap<List<Symbol>, int[]>();
+
+    private final Set<Symbol> nullable = new HashSet<Symbol>();
+    private final List<Integer> emptyRules = new ArrayList<Integer>();
+
+    Conversion(ContextFreeGrammar cfg) {
+      Variable given = cfg.getStartVariable();
+      variables.add(given);
+      variables.addAll(cfg.getVariables());
+      boolean startOnRight = false;
+      for (Rule rule : cfg.getRules()) {
+        variables.add(rule.getVariable());
+        for (Symbol symbol : rule.getExpansion()) {
+          if (!symbol.isTerminal()) variables.add((Variable)symbol);
+          startOnRight |= symbol.equals(given);
+        }
+      }
+
+      // 1. START
+      if (startOnRight) {
+        start = fresh(given.toString());
+        spliced.add(start);
+        addBinRule(start, given);
+      } else {
+        start = given;
+      }
+
+      // 2. BIN, from the end of each rule, so a helper is named by its first symbol and the helper after it
+      Map<List<Symbol>, Variable> helpers = new HashMap<List<Symbol>, Variable>();
+      for (Rule rule : cfg.getRules()) {
+        Symbol[] body = symbols(rule.getExpansion());
+        if (body.length <= 2) {
+          addBinRule(rule.getVariable(), body);
+          continue;
+        }
+        Symbol rest = body[body.length - 1];
+        for (int p = body.length - 2; p >= 1; p--) {
+          List<Symbol> pair = Arrays.asList(body[p], rest);
+          Variable helper = helpers.get(pair);
+          if (helper == null) {
+            helper = fresh("H");
+            spliced.add(helper);
+            helpers.put(pair, helper);
+            addBinRule(helper, body[p], rest);
+          }
+          rest = helper;
+        }
+        addBinRule(rule.getVariable(), body[0], rest);
+      }
+
+      // 3. DEL. Nullable variables first, repeating until no rule adds another
+      boolean changed = true;
+      while (changed) {
+        changed = false;
+        for (int r = 0; r < binLhs.size(); r++) {
+          if (nullable.contains(binLhs.get(r))) continue;
+          if (!nullable.containsAll(Arrays.asList(binBody.get(r)))) continue;
+          nullable.add(binLhs.get(r));
+          emptyRules.add(r);
+          changed = true;
+        }
+      }
+
+      Set<List<Symbol>> seen = new HashSet<List<Symbol>>();
+      for (int r = 0; r < binLhs.size(); r++) {
+        Variable lhs = binLhs.get(r);
+        Symbol[] body = binBody.get(r);
+        for (int erased = 0; erased < 1 << body.length; erased++) {
+          List<Symbol> kept = new ArrayList<Symbol>();
+          kept.add(lhs);
+          for (int p = 0; p < body.length; p++) {
+            if ((erased & (1 << p)) == 0) kept.add(body[p]);
+            else if (!nullable.contains(body[p])) kept = null;
+            if (kept == null) break;
+          }
+          // Leaving every symbol out derives the empty word, put back below for the start variable only
+          if (kept == null || kept.size() == 1) continue;
+          if (kept.size() == 2 && kept.get(1).equals(lhs)) continue;
+          if (!seen.add(kept)) continue;
+          delLhs.add(lhs);
+          delBody.add(kept.subList(1, kept.size()).toArray(new Symbol[0]));
+          delFrom.add(r);
+          delErased.add(erased);
+        }
+      }
+
+      // 4. UNIT, walking the unit rules breadth first from each left hand side, so each variable
+      // reached keeps the shortest chain to it
+      Map<Variable, List<Integer>> units = new LinkedHashMap<Variable, List<Integer>>();
+      Map<Variable, List<Integer>> others = new LinkedHashMap<Variable, List<Integer>>();
+      for (int r = 0; r < delLhs.size(); r++) {
+        Symbol[] body = delBody.get(r);
+        boolean unit = body.length == 1 && !body[0].isTerminal();
+        (unit ? units : others).computeIfAbsent(delLhs.get(r), v -> new ArrayList<Integer>()).add(r);
+        (unit ? others : units).computeIfAbsent(delLhs.get(r), v -> new ArrayList<Integer>());
+      }
+
+      List<Rule> rules = new ArrayList<Rule>();
+      for (Variable a : units.keySet()) {
+        Map<Variable, Integer> via = new LinkedHashMap<Variable, Integer>(); // the unit rule reaching each, -1 for a
+        Deque<Variable> pending = new ArrayDeque<Variable>();
+        via.put(a, -1);
+        pending.add(a);
+        while (!pending.isEmpty()) {
+          for (int u : units.getOrDefault(pending.poll(), new ArrayList<Integer>())) {
+            Variable b = (Variable)delBody.get(u)[0];
+            if (via.putIfAbsent(b, u) == null) pending.add(b);
+          }
+        }
+
+        for (Variable b : via.keySet()) {
+          List<Integer> chain = new ArrayList<Integer>();
+          for (int u = via.get(b); u >= 0; u = via.get(delLhs.get(u))) chain.add(0, u);
+          for (int r : others.getOrDefault(b, new ArrayList<Integer>())) {
+            chain.add(r);
+            // 5. TERM, in the rules of two symbols
+            Symbol[] body = delBody.get(r).clone();
+            if (body.length == 2) {
+              for (int p = 0; p < 2; p++) body[p] = body[p].isTerminal() ? terminalVariable((Terminal)body[p]) : body[p];
+            }
+            List<Symbol> key = new ArrayList<Symbol>();
+            key.add(a);
+            key.addAll(Arrays.asList(body));
+            if (origins.putIfAbsent(key, chain.stream().mapToInt(Integer::intValue).toArray()) == null) {
+              rules.add(new Rule(a, new Word(body)));
+            }
+            chain.remove(chain.size() - 1);
+          }
+        }
+      }
+      for (Map.Entry<Terminal, Variable> entry : terminalVariables.entrySet()) {
+        rules.add(new Rule(entry.getValue(), new Word(entry.getKey())));
+      }
+      if (nullable.contains(start)) rules.add(new Rule(start, Word.emptyWord));
+
+      this.converted = new ContextFreeGrammar(new HashSet<Variable>(variables), cfg.getTerminals(), rules, start);
+    }
+
+    private void addBinRule(Variable lhs, Symbol... body) {
+      binLhs.add(lhs);
+      binBody.add(body);
+    }
+
+    private Variable terminalVariable(Terminal t) {
+      return terminalVariables.computeIfAbsent(t, x -> fresh("T"));
+    }
+
+    // A variable named prefix and the first number that makes it new
+    private Variable fresh(String prefix) {
+      int index = nextIndex.getOrDefault(prefix, 0);
+      Variable variable = new Variable(prefix + index);
+      while (!variables.add(variable)) variable = new Variable(prefix + ++index);
+      nextIndex.put(prefix, index + 1);
+      return variable;
+    }
+  }
+
+  // What a subtree of the converted grammar is in the grammar as given: a run of nodes, one for a
+  // variable as given, none or several where it was spliced away. covering counts the nodes over
+  // at least one symbol of the word, and spanning is the one of them when it is the only one and
+  // a variable's, so it covers exactly the symbols the subtree does
+  public static final class Restored {
+    private final ParseTreeNode[] nodes;
+    private final int covering;
+    private final int spanning;
+    private final Variable variable;
+
+    private Restored(ParseTreeNode terminal) {
+      this.nodes = new ParseTreeNode[] { terminal };
+      this.covering = 1;
+      this.spanning = -1;
+      this.variable = null;
+    }
+
+    private Restored(ParseTreeNode node, Variable variable, boolean covers) {
+      this.nodes = new ParseTreeNode[] { node };
+      this.covering = covers ? 1 : 0;
+      this.spanning = covers ? 0 : -1;
+      this.variable = covers ? variable : null;
+    }
+
+    private Restored(List<Restored> parts) {
+      List<ParseTreeNode> joined = new ArrayList<ParseTreeNode>();
+      int covering = 0, spanning = -1;
+      Variable variable = null;
+      for (Restored part : parts) {
+        if (part.covering == 1 && part.spanning >= 0) {
+          spanning = joined.size() + part.spanning;
+          variable = part.variable;
+        }
+        covering += part.covering;
+        joined.addAll(Arrays.asList(part.nodes));
+      }
+      this.nodes = joined.toArray(new ParseTreeNode[0]);
+      this.covering = covering;
+      this.spanning = covering == 1 ? spanning : -1;
+      this.variable = covering == 1 ? variable : null;
+    }
+
+    // The whole tree, for a subtree rooted at the start variable
+    public ParseTreeNode getTree() {
+      if (nodes.length != 1) throw new IllegalStateException("Not a single tree: " + nodes.length + " nodes");
+      return nodes[0];
+    }
+
+    // The node covering exactly the symbols of the subtree, null if there is none
+    public ParseTreeNode getNode() {
+      return spanning < 0 ? null : nodes[spanning];
+    }
+
+    public Variable getVariable() {
+      return variable;
+    }
+  }
+}
@@ -0,0 +1,793 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import computation.contextfreegrammar.*;
+
+// A ContextFreeGrammar with every Variable and Terminal mapped to a dense int id.
+// Variables are numbered 0..getVariableCount() - 1 (the start variable is always 0)
+// and terminals 0..getTerminalCount() - 1, so a set of variables fits in a long[]
+// bitset (see Bits) and a word can be handled as an int[] of terminal ids.
+// Everything is derived once in the constructor and never changes afterwards, so one
+// instance can be shared by any number of threads (see GrammarCache for reuse across parses).
+// Arrays returned by the getters are the internal ones and must not be modified.
+// The tables are arrays per symbol at most, never per rule, so a grammar read back by
+// GrammarFile.load costs a few bulk copies rather than an object for every rule.
+//
+// Compiled with convert set, a grammar not in CNF is first converted by CnfGrammar (see
+// getConversion), and everything below is about the converted grammar. Compiled with optimize
+// set, a CNF grammar is then reduced by OptimizedGrammar and the ids are those of its merged
+// variables, while original ids (0..getOriginalVariableCount() - 1, start variable 0) name the
+// variables before merging, for labelling parse trees. Without it the two numberings are the same.
+public class CompiledGrammar {
+
+  // itemNext of a dotted rule with the dot at the end
+  public static final int NO_SYMBOL = Integer.MIN_VALUE;
+
+  private final ContextFreeGrammar cfg;
+  private final CnfGrammar conversion;
+  private final boolean optimized;
+  private final List<Variable> variables = new ArrayList<Variable>();
+  private final List<Terminal> terminals = new ArrayList<Terminal>();
+  private final Map<Symbol, Integer> variableIds = new HashMap<Symbol, Integer>();
+  private final Map<Symbol, Integer> terminalIds = new HashMap<Symbol, Integer>();
+  private final int cellWords;
+  private volatile Map<Symbol, List<Word>> expansionsMap; // built when first asked for
+  private volatile long fingerprint; // 0 until first asked for
+  private volatile byte[] tables; // what GrammarFile.save writes after its header, once the fingerprint is asked for
+  private final boolean chomskyNormalForm;
+  private final boolean emptyWordInLanguage;
+
+  // Rules of the form A -> a, indexed by terminal id: the set of variables A producing a
+  private final long[][] terminalRules;
+
+  // Rules of the form A -> BC, stored as parallel arrays in grammar order
+  private final int[] binaryLhs;
+  private final int[] binaryLeft;
+  private final int[] binaryRight;
+
+  // The same rules indexed by left hand side: the rule numbers of each A, in grammar order
+  private final int[][] binaryRulesByLhs;
+
+  // Reverse index of the same rules by right hand side:
+  // for each B, the distinct C of rules A -> BC and, for each of those C, the set of all such A,
+  // the sets of one B side by side in a single array
+  private final int[][] pairRights;
+  private final long[][] pairLhs;
+
+  // Every rule in general form, for engines that are not limited to CNF (see EarleyParser).
+  // Expansion symbols are encoded as the variable id, or -(terminal id + 1) for a terminal,
+  // and kept in itemNext (see getRuleSymbol)
+  private final int[] ruleLhs;
+  private final int[][] rulesByLhs;
+  private final int[] nullableRule;
+
+  // For prefixes of words, over the binary and terminal rules (see StreamingRecognizer):
+  // the variables deriving at least one word, and for each B the variables A that derive
+  // B followed by some word, A itself included
+  private final boolean[] generating;
+  private final long[][] leftAncestors;
+
+  // Lower bounds over every word a variable derives, by the binary and terminal rules (see Parser):
+  // its length, and how many of each terminal it holds. Integer.MAX_VALUE when it derives none
+  private final int[] minLength;
+  private final int[][] minTerminalCount;
+
+  // Linear time filters on words of a CNF grammar (see mayDerive): the terminal ids that can begin
+  // and end a word of the language, and for each terminal id those that can come right after it
+  private final long[] firstTerminals;
+  private final long[] lastTerminals;
+  private final long[][] followingTerminals;
+
+  // Dotted rules (items) A -> X1..Xd . Xd+1..Xm numbered densely: rule r with the dot
+  // after d symbols is item getFirstItem(r) + d, and itemNext gives the symbol after the dot.
+  // firstItem has one more entry, the item count, so rule r has firstItem[r + 1] - firstItem[r] items
+  private final int[] firstItem;
+  private final int[] itemRule;
+  private final int[] itemNext;
+
+  // With optimize: the original variables that can appear in a parse tree, and for binary rule r
+  // and each original variable ov of its left hand side (at originalMember[ov] among them) the
+  // original variables of the children, from the rule of ov that r was merged from. Those of
+  // rule r start at originalStart[r]
+  private final Variable[] originalVariables;
+  private final int[] originalMember;
+  private final int[] originalStart;
+  private final int[] originalLeft;
+  private final int[] originalRight;
+
+  public CompiledGrammar(ContextFreeGrammar cfg) {
+    this(cfg, false, false);
+  }
+
+  public CompiledGrammar(ContextFreeGrammar cfg, boolean convert, boolean optimize) {
+    this.cfg = cfg;
+    this.conversion = convert && !cfg.isInChomskyNormalForm() ? new CnfGrammar(cfg) : null;
+    final ContextFreeGrammar cnf = conversion != null ? conversion.getGrammar() : cfg;
+    this.chomskyNormalForm = conversion != null || cfg.isInChomskyNormalForm();
+
+    // Only CNF grammars are optimized, the general engines keep every rule as written
+    this.optimized = optimize && chomskyNormalForm;
+    final OptimizedGrammar optimizer = optimized ? new OptimizedGrammar(cnf) : null;
+    final ContextFreeGrammar source = optimized ? optimizer.getGrammar() : cnf;
+
+    // 1. Number every symbol in order of first appearance, start variable first
+    variableId(source.getStartVariable());
+    for (Rule rule : source.getRules()) {
+      variableId(rule.getVariable());
+      for (Symbol symbol : rule.getExpansion()) {
+        if (symbol.isTerminal()) terminalId(symbol);
+        else variableId(symbol);
+      }
+    }
+
+    // 2. Split the rules by expansion length
+    cellWords = Bits.words(variables.size());
+    terminalRules = new long[terminals.size()][cellWords];
+    List<Rule> twoLengthRules = new ArrayList<Rule>();
+    for (Rule rule : source.getRules()) {
+      Word expansion = rule.getExpansion();
+      if (expansion.length() == 1 && expansion.get(0).isTerminal()) {
+        Bits.add(terminalRules[terminalIds.get(expansion.get(0))], variableIds.get(rule.getVariable()));
+      } else if (expansion.length() == 2 && !expansion.get(0).isTerminal() && !expansion.get(1).isTerminal()) {
+        twoLengthRules.add(rule);
+      }
+    }
+
+    binaryLhs = new int[twoLengthRules.size()];
+    binaryLeft = new int[twoLengthRules.size()];
+    binaryRight = new int[twoLengthRules.size()];
+    for (int r = 0; r < twoLengthRules.size(); r++) {
+      Rule rule = twoLengthRules.get(r);
+      binaryLhs[r] = variableIds.get(rule.getVariable());
+      binaryLeft[r] = variableIds.get(rule.getExpansion().get(0));
+      binaryRight[r] = variableIds.get(rule.getExpansion().get(1));
+    }
+
+    // 3. Index the binary rules by left hand side and by (B, C) pair
+    final int variableCount = variables.size();
+    List<List<Integer>> byLhs = new ArrayList<List<Integer>>();
+    List<Map<Integer, long[]>> byPair = new ArrayList<Map<Integer, long[]>>();
+    for (int v = 0; v < variableCount; v++) {
+      byLhs.add(new ArrayList<Integer>());
+      byPair.add(new LinkedHashMap<Integer, long[]>());
+    }
+    for (int r = 0; r < binaryLhs.length; r++) {
+      byLhs.get(binaryLhs[r]).add(r);
+      long[] lhs = byPair.get(binaryLeft[r]).computeIfAbsent(binaryRight[r], c -> new long[cellWords]);
+      Bits.add(lhs, binaryLhs[r]);
+    }
+
+    binaryRulesByLhs = new int[variableCount][];
+    pairRights = new int[variableCount][];
+    pairLhs = new long[variableCount][];
+    for (int v = 0; v < variableCount; v++) {
+      binaryRulesByLhs[v] = byLhs.get(v).stream().mapToInt(Integer::intValue).toArray();
+      pairRights[v] = byPair.get(v).keySet().stream().mapToInt(Integer::intValue).toArray();
+      pairLhs[v] = new long[pairRights[v].length * cellWords];
+      int pair = 0;
+      for (long[] lhs : byPair.get(v).values()) System.arraycopy(lhs, 0, pairLhs[v], pair++ * cellWords, cellWords);
+    }
+
+    // 4. Every rule in general form, grouped by left hand side, and the dotted rules over them
+    final List<Rule> rules = source.getRules();
+    ruleLhs = new int[rules.size()];
+    final int[][] expansions = new int[rules.size()][];
+    firstItem = new int[rules.size() + 1];
+    List<List<Integer>> allByLhs = new ArrayList<List<Integer>>();
+    for (int v = 0; v < variableCount; v++) allByLhs.add(new ArrayList<Integer>());
+
+    int items = 0;
+    for (int r = 0; r < rules.size(); r++) {
+      Word expansion = rules.get(r).getExpansion();
+      ruleLhs[r] = variableIds.get(rules.get(r).getVariable());
+      expansions[r] = new int[expansion.length()];
+      for (int x = 0; x < expansion.length(); x++) {
+        Symbol symbol = expansion.get(x);
+        expansions[r][x] = symbol.isTerminal() ? -(terminalIds.get(symbol) + 1) : variableIds.get(symbol);
+      }
+      allByLhs.get(ruleLhs[r]).add(r);
+      firstItem[r] = items;
+      items += expansion.length() + 1;
+    }
+    firstItem[rules.size()] = items;
+
+    rulesByLhs = new int[variableCount][];
+    for (int v = 0; v < variableCount; v++) {
+      rulesByLhs[v] = allByLhs.get(v).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    itemRule = new int[items];
+    itemNext = new int[items];
+    for (int r = 0; r < rules.size(); r++) {
+      for (int d = 0; d <= expansions[r].length; d++) {
+        itemRule[firstItem[r] + d] = r;
+        itemNext[firstItem[r] + d] = d < expansions[r].length ? expansions[r][d] : NO_SYMBOL;
+      }
+    }
+
+    boolean emptyRule = false;
+    for (int r : rulesByLhs[getStartVariable()]) emptyRule |= expansions[r].length == 0;
+    this.emptyWordInLanguage = emptyRule;
+
+    // 5. Nullable variables, repeating until no rule adds another. nullableRule keeps the rule
+    // that first showed each one nullable, so its symbols were all shown nullable before it
+    nullableRule = new int[variableCount];
+    Arrays.fill(nullableRule, -1);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int r = 0; r < rules.size(); r++) {
+        if (nullableRule[ruleLhs[r]] >= 0) continue;
+        boolean allNullable = true;
+        for (int symbol : expansions[r]) {
+          if (symbol < 0 || nullableRule[symbol] < 0) {
+            allNullable = false;
+            break;
+          }
+        }
+        if (allNullable) {
+          nullableRule[ruleLhs[r]] = r;
+          changed = true;
+        }
+      }
+    }
+
+    // 6. Generating variables, from the rules A -> a up, then each variable's left ancestors
+    // by walking up the rules A -> BC whose C is generating, from B
+    generating = new boolean[variableCount];
+    for (long[] producers : terminalRules) {
+      for (int v = 0; v < variableCount; v++) generating[v] |= Bits.contains(producers, v);
+    }
+    changed = true;
+    while (changed) {
+      changed = false;
+      for (int r = 0; r < binaryLhs.length; r++) {
+        if (!generating[binaryLhs[r]] && generating[binaryLeft[r]] && generating[binaryRight[r]]) {
+          generating[binaryLhs[r]] = true;
+          changed = true;
+        }
+      }
+    }
+
+    // The rules A -> BC with C generating, by B, so the walk only looks at the rules it can take
+    List<List<Integer>> byLeft = new ArrayList<List<Integer>>();
+    for (int v = 0; v < variableCount; v++) byLeft.add(new ArrayList<Integer>());
+    for (int r = 0; r < binaryLhs.length; r++) {
+      if (generating[binaryRight[r]]) byLeft.get(binaryLeft[r]).add(r);
+    }
+
+    leftAncestors = new long[variableCount][cellWords];
+    for (int b = 0; b < variableCount; b++) {
+      Deque<Integer> pending = new ArrayDeque<Integer>();
+      Bits.add(leftAncestors[b], b);
+      pending.push(b);
+      while (!pending.isEmpty()) {
+        for (int r : byLeft.get(pending.pop())) {
+          if (Bits.contains(leftAncestors[b], binaryLhs[r])) continue;
+          Bits.add(leftAncestors[b], binaryLhs[r]);
+          pending.push(binaryLhs[r]);
+        }
+      }
+    }
+
+    // 7. Shortest lengths and fewest terminals, from the rules A -> a, then lowered through
+    // the rules A -> BC until nothing changes. Each only goes down, so this ends
+    final int terminalCount = terminals.size();
+    minLength = new int[variableCount];
+    minTerminalCount = new int[variableCount][terminalCount];
+    Arrays.fill(minLength, Integer.MAX_VALUE);
+    for (int[] counts : minTerminalCount) Arrays.fill(counts, Integer.MAX_VALUE);
+    for (int t = 0; t < terminalCount; t++) {
+      for (int v = 0; v < variableCount; v++) {
+        if (!Bits.contains(terminalRules[t], v)) continue;
+        minLength[v] = 1;
+        for (int u = 0; u < terminalCount; u++) {
+          minTerminalCount[v][u] = Math.min(minTerminalCount[v][u], u == t ? 1 : 0);
+        }
+      }
+    }
+    changed = true;
+    while (changed) {
+      changed = false;
+      for (int r = 0; r < binaryLhs.length; r++) {
+        int a = binaryLhs[r], b = binaryLeft[r], c = binaryRight[r];
+        if (minLength[b] == Integer.MAX_VALUE || minLength[c] == Integer.MAX_VALUE) continue;
+        if (minLength[b] + minLength[c] < minLength[a]) {
+          minLength[a] = minLength[b] + minLength[c];
+          changed = true;
+        }
+        for (int t = 0; t < terminalCount; t++) {
+          if (minTerminalCount[b][t] + minTerminalCount[c][t] < minTerminalCount[a][t]) {
+            minTerminalCount[a][t] = minTerminalCount[b][t] + minTerminalCount[c][t];
+            changed = true;
+          }
+        }
+      }
+    }
+
+    // 8. The filters. First and last terminals of each variable, over the rules A -> a and the
+    // rules A -> BC whose B and C derive some word, until nothing changes. Two terminals meet in a
+    // word only across the split of some rule A -> BC in its tree, last of B then first of C, so
+    // the rules used by the trees of the start variable give every pair that can
+    if (chomskyNormalForm) {
+      final int terminalWords = Bits.words(terminalCount);
+      long[][] first = new long[variableCount][terminalWords];
+      long[][] last = new long[variableCount][terminalWords];
+      for (int t = 0; t < terminalCount; t++) {
+        for (int v = 0; v < variableCount; v++) {
+          if (!Bits.contains(terminalRules[t], v)) continue;
+          Bits.add(first[v], t);
+          Bits.add(last[v], t);
+        }
+      }
+      changed = true;
+      while (changed) {
+        changed = false;
+        for (int r = 0; r < binaryLhs.length; r++) {
+          if (!generating[binaryLeft[r]] || !generating[binaryRight[r]]) continue;
+          changed |= Bits.addAll(first[binaryLhs[r]], first[binaryLeft[r]]);
+          changed |= Bits.addAll(last[binaryLhs[r]], last[binaryRight[r]]);
+        }
+      }
+
+      boolean[] used = new boolean[variableCount];
+      Deque<Integer> pending = new ArrayDeque<Integer>();
+      used[getStartVariable()] = true;
+      pending.push(getStartVariable());
+      followingTerminals = new long[terminalCount][terminalWords];
+      while (!pending.isEmpty()) {
+        for (int r : binaryRulesByLhs[pending.pop()]) {
+          int b = binaryLeft[r], c = binaryRight[r];
+          if (!generating[b] || !generating[c]) continue;
+          for (int t = 0; t < terminalCount; t++) {
+            if (Bits.contains(last[b], t)) Bits.addAll(followingTerminals[t], first[c]);
+          }
+          if (!used[b]) {
+            used[b] = true;
+            pending.push(b);
+          }
+          if (!used[c]) {
+            used[c] = true;
+            pending.push(c);
+          }
+        }
+      }
+      firstTerminals = first[getStartVariable()];
+      lastTerminals = last[getStartVariable()];
+    } else {
+      firstTerminals = null;
+      lastTerminals = null;
+      followingTerminals = null;
+    }
+
+    // 9. The way back to the original variables, for each binary rule and each member of its
+    // left hand side's class. Members share their expansions up to merging, so each has a rule
+    if (!optimized) {
+      originalVariables = null;
+      originalMember = null;
+      originalStart = null;
+      originalLeft = null;
+      originalRight = null;
+      return;
+    }
+    List<Variable> kept = optimizer.getOriginalVariables();
+    originalVariables = kept.toArray(new Variable[0]);
+    originalMember = new int[originalVariables.length];
+    List<List<Integer>> members = new ArrayList<List<Integer>>();
+    for (int v = 0; v < variableCount; v++) members.add(new ArrayList<Integer>());
+    Map<Variable, Integer> originalIds = new HashMap<Variable, Integer>();
+    for (int ov = 0; ov < originalVariables.length; ov++) {
+      List<Integer> group = members.get(variableIds.get(optimizer.getRepresentative(originalVariables[ov])));
+      originalMember[ov] = group.size();
+      group.add(ov);
+      originalIds.put(originalVariables[ov], ov);
+    }
+
+    originalStart = new int[binaryLhs.length + 1];
+    for (int r = 0; r < binaryLhs.length; r++) {
+      originalStart[r + 1] = originalStart[r] + members.get(binaryLhs[r]).size();
+    }
+    originalLeft = new int[originalStart[binaryLhs.length]];
+    originalRight = new int[originalStart[binaryLhs.length]];
+    for (int r = 0; r < binaryLhs.length; r++) {
+      List<Integer> group = members.get(binaryLhs[r]);
+      Word expansion = new Word(variables.get(binaryLeft[r]), variables.get(binaryRight[r]));
+      for (int m = 0; m < group.size(); m++) {
+        Word from = optimizer.getOriginalRule(originalVariables[group.get(m)], expansion).getExpansion();
+        originalLeft[originalStart[r] + m] = originalIds.get(from.get(0));
+        originalRight[originalStart[r] + m] = originalIds.get(from.get(1));
+      }
+    }
+  }
+
+  // A grammar read back by GrammarFile.load, the tables in the order write puts them.
+  // It has no ContextFreeGrammar behind it, see getGrammar, but has its conversion
+  CompiledGrammar(GrammarFile.Reader in) {
+    this.cfg = null;
+    this.conversion = in.getBoolean() ? new CnfGrammar(in) : null;
+    this.optimized = in.getBoolean();
+    this.chomskyNormalForm = in.getBoolean();
+    this.emptyWordInLanguage = in.getBoolean();
+
+    int variableCount = in.getInt();
+    for (int v = 0; v < variableCount; v++) variableId(new Variable(in.getString()));
+    int terminalCount = in.getInt();
+    for (int t = 0; t < terminalCount; t++) terminalId(new Terminal(in.getChar()));
+    this.cellWords = Bits.words(variableCount);
+
+    this.terminalRules = in.getLongRows();
+    this.binaryLhs = in.getInts();
+    this.binaryLeft = in.getInts();
+    this.binaryRight = in.getInts();
+    this.binaryRulesByLhs = in.getIntRows();
+    this.pairRights = in.getIntRows();
+    this.pairLhs = in.getLongRows();
+
+    this.ruleLhs = in.getInts();
+    this.rulesByLhs = in.getIntRows();
+    this.nullableRule = in.getInts();
+    this.firstItem = in.getInts();
+    this.itemRule = in.getInts();
+    this.itemNext = in.getInts();
+
+    this.generating = in.getBooleans();
+    this.leftAncestors = in.getLongRows();
+    this.minLength = in.getInts();
+    this.minTerminalCount = in.getIntRows();
+    this.firstTerminals = in.getLongs();
+    this.lastTerminals = in.getLongs();
+    this.followingTerminals = in.getLongRows();
+
+    if (optimized) {
+      int originalCount = in.getInt();
+      this.originalVariables = new Variable[originalCount];
+      for (int ov = 0; ov < originalCount; ov++) originalVariables[ov] = new Variable(in.getString());
+    } else {
+      this.originalVariables = null;
+    }
+    this.originalMember = in.getInts();
+    this.originalStart = in.getInts();
+    this.originalLeft = in.getInts();
+    this.originalRight = in.getInts();
+  }
+
+  // Writes every table for the constructor above to read back, the conversion's first
+  void write(GrammarFile.Writer out) {
+    out.putBoolean(conversion != null);
+    if (conversion != null) conversion.write(out);
+    out.putBoolean(optimized);
+    out.putBoolean(chomskyNormalForm);
+    out.putBoolean(emptyWordInLanguage);
+
+    out.putInt(variables.size());
+    for (Variable variable : variables) out.putString(variable.toString());
+    out.putInt(terminals.size());
+    for (Terminal terminal : terminals) out.putChar(terminal.toString().charAt(0));
+
+    out.putLongRows(terminalRules);
+    out.putInts(binaryLhs);
+    out.putInts(binaryLeft);
+    out.putInts(binaryRight);
+    out.putIntRows(binaryRulesByLhs);
+    out.putIntRows(pairRights);
+    out.putLongRows(pairLhs);
+
+    out.putInts(ruleLhs);
+    out.putIntRows(rulesByLhs);
+    out.putInts(nullableRule);
+    out.putInts(firstItem);
+    out.putInts(itemRule);
+    out.putInts(itemNext);
+
+    out.putBooleans(generating);
+    out.putLongRows(leftAncestors);
+    out.putInts(minLength);
+    out.putIntRows(minTerminalCount);
+    out.putLongs(firstTerminals);
+    out.putLongs(lastTerminals);
+    out.putLongRows(followingTerminals);
+
+    if (optimized) {
+      out.putInt(originalVariables.length);
+      for (Variable variable : originalVariables) out.putString(variable.toString());
+    }
+    out.putInts(originalMember);
+    out.putInts(originalStart);
+    out.putInts(originalLeft);
+    out.putInts(originalRight);
+  }
+
+  private int variableId(Symbol symbol) {
+    Integer id = variableIds.get(symbol);
+    if (id == null) {
+      id = variables.size();
+      variables.add((Variable)symbol);
+      variableIds.put(symbol, id);
+    }
+    return id;
+  }
+
+  private int terminalId(Symbol symbol) {
+    Integer id = terminalIds.get(symbol);
+    if (id == null) {
+      id = terminals.size();
+      terminals.add((Terminal)symbol);
+      terminalIds.put(symbol, id);
+    }
+    return id;
+  }
+
+  // The grammar compiled, null for one read back by GrammarFile.load
+  public ContextFreeGrammar getGrammar() {
+    return this.cfg;
+  }
+
+  // The conversion of a grammar that was not in CNF, whose trees it restores, null for any other
+  public CnfGrammar getConversion() {
+    return this.conversion;
+  }
+
+  // True when the ids are those of an OptimizedGrammar, see getOriginalVariable
+  public boolean isOptimized() {
+    return this.optimized;
+  }
+
+  // The expansions of the compiled grammar, so of the converted or optimized one when it is.
+  // Built from the rule tables on the first call; threads racing on it build equal maps
+  public Map<Symbol, List<Word>> getExpansions() {
+    Map<Symbol, List<Word>> expansions = this.expansionsMap;
+    if (expansions == null) {
+      Map<Symbol, List<Word>> grouped = new HashMap<Symbol, List<Word>>();
+      for (int r = 0; r < ruleLhs.length; r++) {
+        Symbol[] symbols = new Symbol[getRuleLength(r)];
+        for (int x = 0; x < symbols.length; x++) {
+          int symbol = getRuleSymbol(r, x);
+          symbols[x] = symbol < 0 ? terminals.get(-(symbol + 1)) : variables.get(symbol);
+        }
+        Word expansion = symbols.length == 0 ? Word.emptyWord : new Word(symbols);
+        grouped.computeIfAbsent(variables.get(ruleLhs[r]), v -> new ArrayList<Word>()).add(expansion);
+      }
+      grouped.replaceAll((v, words) -> Collections.unmodifiableList(words));
+      expansions = Collections.unmodifiableMap(grouped);
+      this.expansionsMap = expansions;
+    }
+    return expansions;
+  }
+
+  // A 64 bit hash of every table, and for a converted grammar of the rules as given: the same for
+  // the same grammar compiled the same way, in any process and after GrammarFile.load (see ResultCache)
+  public long getFingerprint() {
+    long hash = this.fingerprint;
+    if (hash == 0) {
+      hash = GrammarFile.fingerprint(tables());
+      this.fingerprint = hash;
+    }
+    return hash;
+  }
+
+  // Whether other is this grammar compiled the same way, comparing every table when the
+  // fingerprints agree, so two grammars whose fingerprints only collide are told apart.
+  // Both keep their tables serialized from then on, the size of their GrammarFile
+  public boolean hasSameTables(CompiledGrammar other) {
+    if (other == this) return true;
+    return getFingerprint() == other.getFingerprint() && Arrays.equals(tables(), other.tables());
+  }
+
+  private byte[] tables() {
+    byte[] bytes = this.tables;
+    if (bytes == null) {
+      bytes = GrammarFile.tables(this);
+      this.tables = bytes;
+    }
+    return bytes;
+  }
+
+  public boolean isInChomskyNormalForm() {
+    return this.chomskyNormalForm;
+  }
+
+  // True when the start variable has an empty expansion
+  public boolean isEmptyWordInLanguage() {
+    return this.emptyWordInLanguage;
+  }
+
+  public int getStartVariable() {
+    return 0;
+  }
+
+  public int getVariableCount() {
+    return variables.size();
+  }
+
+  public int getTerminalCount() {
+    return terminals.size();
+  }
+
+  // Number of longs needed to hold a set of variables
+  public int getCellWords() {
+    return this.cellWords;
+  }
+
+  public Variable getVariable(int id) {
+    return variables.get(id);
+  }
+
+  public int getOriginalVariableCount() {
+    return optimized ? originalVariables.length : variables.size();
+  }
+
+  public Variable getOriginalVariable(int ov) {
+    return optimized ? originalVariables[ov] : variables.get(ov);
+  }
+
+  // The original variables of the children of a node of original variable ov expanded by
+  // binary rule, whose left hand side must be the variable ov was merged into
+  public int getOriginalLeft(int ov, int rule) {
+    return optimized ? originalLeft[originalStart[rule] + originalMember[ov]] : binaryLeft[rule];
+  }
+
+  public int getOriginalRight(int ov, int rule) {
+    return optimized ? originalRight[originalStart[rule] + originalMember[ov]] : binaryRight[rule];
+  }
+
+  public Terminal getTerminal(int id) {
+    return terminals.get(id);
+  }
+
+  // Returns the set of variables with a rule A -> a for the terminal id a
+  public long[] getTerminalRules(int terminal) {
+    return terminalRules[terminal];
+  }
+
+  public int getBinaryRuleCount() {
+    return binaryLhs.length;
+  }
+
+  public int getBinaryLhs(int rule) {
+    return binaryLhs[rule];
+  }
+
+  public int getBinaryLeft(int rule) {
+    return binaryLeft[rule];
+  }
+
+  public int getBinaryRight(int rule) {
+    return binaryRight[rule];
+  }
+
+  // Rule numbers of the binary rules with left hand side a, in grammar order
+  public int[] getBinaryRules(int a) {
+    return binaryRulesByLhs[a];
+  }
+
+  // The distinct C such that some rule A -> bC exists
+  public int[] getPairRights(int b) {
+    return pairRights[b];
+  }
+
+  // The sets of A with a rule A -> bC, one for each C = getPairRights(b)[pair], that one
+  // being the getCellWords() longs from pair * getCellWords() on
+  public long[] getPairLhs(int b) {
+    return pairLhs[b];
+  }
+
+  public int getRuleCount() {
+    return ruleLhs.length;
+  }
+
+  public int getRuleLhs(int rule) {
+    return ruleLhs[rule];
+  }
+
+  public int getRuleLength(int rule) {
+    return firstItem[rule + 1] - firstItem[rule] - 1;
+  }
+
+  // Symbol x of a rule's expansion: a variable id, or -(terminal id + 1) for a terminal
+  public int getRuleSymbol(int rule, int x) {
+    return itemNext[firstItem[rule] + x];
+  }
+
+  // Every rule with left hand side a, of any length, in grammar order
+  public int[] getRules(int a) {
+    return rulesByLhs[a];
+  }
+
+  // True when the variable derives the empty word
+  public boolean isNullable(int variable) {
+    return nullableRule[variable] >= 0;
+  }
+
+  // A rule deriving the empty word from variable through symbols that do so more directly,
+  // so following these rules down always ends; -1 when the variable is not nullable
+  public int getNullableRule(int variable) {
+    return nullableRule[variable];
+  }
+
+  public int getItemCount() {
+    return itemRule.length;
+  }
+
+  // The item of rule with the dot before its first symbol; the dot after d symbols is this + d
+  public int getFirstItem(int rule) {
+    return firstItem[rule];
+  }
+
+  public int getItemRule(int item) {
+    return itemRule[item];
+  }
+
+  // The encoded symbol after the dot, NO_SYMBOL when the dot is at the end
+  public int getItemNext(int item) {
+    return itemNext[item];
+  }
+
+  // True when the variable derives some word, using the binary and terminal rules
+  public boolean isGenerating(int variable) {
+    return generating[variable];
+  }
+
+  // The variables A deriving b followed by some word, so deriving every word with a prefix b does.
+  // Includes b itself
+  public long[] getLeftAncestors(int b) {
+    return leftAncestors[b];
+  }
+
+  // Length of the shortest word the variable derives, Integer.MAX_VALUE if it derives none
+  public int getMinLength(int variable) {
+    return minLength[variable];
+  }
+
+  // The fewest times terminal id t occurs in any word the variable derives
+  public int getMinTerminalCount(int variable, int t) {
+    return minTerminalCount[variable][t];
+  }
+
+  // False when w is certainly not in the language of a CNF grammar: a symbol is not one of its
+  // terminals, w begins or ends with a terminal no word does, or has two neighbours that never
+  // meet in a word. One pass over w, allocating nothing. True only means w has to be parsed,
+  // and it is always true for a grammar not in CNF
+  public boolean mayDerive(Word w) {
+    if (w.length() == 0) return emptyWordInLanguage;
+    if (firstTerminals == null) return true;
+    long[] allowed = firstTerminals;
+    int t = -1;
+    for (int i = 0; i < w.length(); i++) {
+      Integer id = terminalIds.get(w.get(i));
+      if (id == null || !Bits.contains(allowed, id)) return false;
+      t = id;
+      allowed = followingTerminals[t];
+    }
+    return Bits.contains(lastTerminals, t);
+  }
+
+  // Whether a CNF engine should parse w at all: false for a grammar not in CNF, a word of nothing
+  // but spaces, and a word mayDerive rules out, so each of those is rejected without parsing
+  public boolean isValidCnfInput(Word w) {
+    if (w.length() == 0) return emptyWordInLanguage;
+    if (!chomskyNormalForm || !mayDerive(w)) return false;
+    return w.count(new Terminal(' ')) != w.length();
+  }
+
+  // The terminal id of symbol, or -1 where the grammar has no such terminal
+  public int getTerminalId(Symbol symbol) {
+    Integer id = terminalIds.get(symbol);
+    return id == null ? -1 : id;
+  }
+
+  // Maps each symbol of w to its terminal id, or -1 where the grammar has no such terminal
+  public int[] encode(Word w) {
+    int[] encoded = new int[w.length()];
+    for (int i = 0; i < encoded.length; i++) {
+      encoded[i] = getTerminalId(w.get(i));
+    }
+    return encoded;
+  }
+}
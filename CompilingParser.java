@@ -0,0 +1,12 @@
+import computation.contextfreegrammar.*;
+import computation.parser.*;
+
+// An engine that parses against a CompiledGrammar from the shared GrammarCache, and can say
+// which one. Code that prepares a grammar ahead of the engine (BatchParser) or keys results by
+// it (CachingParser) asks here, so it uses the entry the engine does rather than compiling
+// the grammar another way.
+public interface CompilingParser extends IParser {
+
+  // The grammar as this engine compiles it for parsing, from GrammarCache.getShared()
+  CompiledGrammar compile(ContextFreeGrammar cfg);
+}
@@ -0,0 +1,141 @@
+// Triangular CYK chart holding a set of variable ids for every span (i, j) with 1 <= i <= j <= n.
+// The spans are stored by row, row i a long[] holding j = i..n, each span taking cellWords longs,
+// so there is no per-cell object and no storage for spans past the end of the word. One array per
+// row rather than one for the chart keeps every allocation to a row's size, which a heap can
+// place when it has no single free region as large as the whole chart.
+// Spans are addressed through offset(i, j), their row and column in one long, then tested and
+// updated with plain bit operations.
+// Alongside the sets, one bit per span records which spans are non-empty, both by row and by
+// column, so that splits(i, j) can find the split points k where (i, k) and (k + 1, j) both
+// hold variables with one AND per 64 candidates instead of visiting every k.
+public class CykChart {
+
+  private final int n;
+  private final int cellWords;
+  private final long[][] rows; // rows[i] for 1 <= i <= n, rows[0] empty
+  private final int maskWords;
+  private final long[] rowMasks; // bit k of row i: span (i, k) is non-empty
+  private final long[] columnMasks; // bit m - 1 of column j: span (m, j) is non-empty
+
+  public CykChart(int n, int cellWords) {
+    long rowSize = (long)n * cellWords;
+    if (rowSize > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("A word of length " + n + " needs chart rows of " + rowSize + " longs");
+    }
+    this.n = n;
+    this.cellWords = cellWords;
+    this.rows = new long[n + 1][];
+    rows[0] = new long[0];
+    for (int i = 1; i <= n; i++) rows[i] = new long[(n - i + 1) * cellWords];
+
+    this.maskWords = Bits.words(n + 1);
+    this.rowMasks = new long[(n + 2) * maskWords];
+    this.columnMasks = new long[(n + 2) * maskWords];
+  }
+
+  // Number of spans in the chart of a word of length n
+  public static long spanCount(int n) {
+    return (long)n * (n + 1) / 2;
+  }
+
+  // Size of the chart in bytes, without creating it, each row with an array header
+  public static long estimateBytes(int n, int cellWords) {
+    return (spanCount(n) * cellWords + 2L * (n + 2) * Bits.words(n + 1) + 3L * (n + 1)) * Long.BYTES;
+  }
+
+  public int getLength() {
+    return this.n;
+  }
+
+  public int getCellWords() {
+    return this.cellWords;
+  }
+
+  // Where span (i, j) is: row i in the high int, its start within the row in the low one
+  public long offset(int i, int j) {
+    return ((long)i << 32) | (j - i) * cellWords;
+  }
+
+  // The number of span (i, j) counting row by row from 0, up to spanCount(n) - 1
+  public long spanIndex(int i, int j) {
+    return (i - 1L) * (n + 1) - (i - 1L) * i / 2 + (j - i);
+  }
+
+  public boolean contains(long offset, int variable) {
+    return (rows[(int)(offset >>> 32)][(int)offset + (variable >>> 6)] & (1L << variable)) != 0;
+  }
+
+  public void add(long offset, int variable) {
+    rows[(int)(offset >>> 32)][(int)offset + (variable >>> 6)] |= 1L << variable;
+  }
+
+  public boolean isEmpty(long offset) {
+    long[] row = rows[(int)(offset >>> 32)];
+    for (int w = 0; w < cellWords; w++) {
+      if (row[(int)offset + w] != 0) return false;
+    }
+    return true;
+  }
+
+  // The wth long of the set at offset, holding variables 64w..64w+63
+  public long getWord(long offset, int w) {
+    return rows[(int)(offset >>> 32)][(int)offset + w];
+  }
+
+  // Adds a whole set of variables (cellWords longs) to the span at offset
+  public void addAll(long offset, long[] variables) {
+    addAll(offset, variables, 0);
+  }
+
+  // The same for the set at from..from + cellWords - 1 of an array holding several
+  public void addAll(long offset, long[] sets, int from) {
+    long[] row = rows[(int)(offset >>> 32)];
+    int start = (int)offset;
+    for (int w = 0; w < cellWords; w++) {
+      row[start + w] |= sets[from + w];
+    }
+  }
+
+  // Copies a whole set of variables (cellWords longs) into the span at offset
+  public void set(long offset, long[] variables) {
+    System.arraycopy(variables, 0, rows[(int)(offset >>> 32)], (int)offset, cellWords);
+  }
+
+  // Copies every span (i, j) of source with from <= i <= j <= to, with its non-empty marks,
+  // into span (i + shift, j + shift) of this chart. For spans covering the same symbols in
+  // both words, as in CykSession
+  public void copyTriangle(CykChart source, int from, int to, int shift) {
+    for (int i = from; i <= to; i++) {
+      System.arraycopy(source.rows[i], 0, rows[i + shift], 0, (to - i + 1) * cellWords);
+      copyBits(source.rowMasks, i * source.maskWords, i, rowMasks, (i + shift) * maskWords, i + shift, to - i + 1);
+    }
+    for (int j = from; j <= to; j++) {
+      copyBits(source.columnMasks, j * source.maskWords, from - 1, columnMasks, (j + shift) * maskWords, from - 1 + shift, j - from + 1);
+    }
+  }
+
+  // ORs count bits of source, from bit sourceBit of the words at sourceBase on, into target
+  private static void copyBits(long[] source, int sourceBase, int sourceBit, long[] target, int targetBase, int targetBit, int count) {
+    while (count > 0) {
+      int chunk = Math.min(count, Math.min(64 - (sourceBit & 63), 64 - (targetBit & 63)));
+      long bits = (source[sourceBase + (sourceBit >>> 6)] >>> sourceBit) & (chunk == 64 ? -1L : (1L << chunk) - 1);
+      target[targetBase + (targetBit >>> 6)] |= bits << targetBit;
+      sourceBit += chunk;
+      targetBit += chunk;
+      count -= chunk;
+    }
+  }
+
+  // Records span (i, j) as non-empty for splits(). Call once the span is complete;
+  // this only touches row i and column j, so spans of one diagonal can do it concurrently
+  public void markNonEmpty(int i, int j) {
+    rowMasks[i * maskWords + (j >>> 6)] |= 1L << j;
+    columnMasks[j * maskWords + ((i - 1) >>> 6)] |= 1L << (i - 1);
+  }
+
+  // The split points k of span (i, j) with both (i, k) and (k + 1, j) non-empty, 64 at a time:
+  // bit b of the result is k = 64 * word + b. Only words i / 64 to (j - 1) / 64 can be non-zero
+  public long splits(int i, int j, int word) {
+    return rowMasks[i * maskWords + word] & columnMasks[j * maskWords + word];
+  }
+}
@@ -0,0 +1,168 @@
+import computation.contextfreegrammar.*;
+import computation.parsetree.*;
+
+// The parse tree CYKParser picks for a word, kept as backpointers over its chart until
+// someone asks for ParseTreeNodes, and then only for the part they ask for.
+//
+// Each variable a of each span (i, j) has one backpointer: the split point k and the rule
+// a -> bc it derives the span by, the last k and then the last rule that fit, as CYKParser
+// always chose. Backpointers are found the first time they are needed, so a caller that only
+// looks at the root label or one subtree pays for the nodes on its way down and no others.
+// Found ones are kept in an open addressing table of longs keyed by span and variable, 16 bytes
+// a slot at half full at most, later subtrees reuse them, and nothing is kept for the rest of
+// the chart. Not thread safe.
+// tree builds the same tree at once straight from the chart, keeping nothing.
+// For a grammar converted to CNF the spans are those of the converted tree, and a span's node is
+// the node of the tree as given covering exactly its symbols, if that is a variable's.
+public final class CykParseTree {
+
+  private final CompiledGrammar grammar;
+  private final CykChart chart;
+  private final Word w;
+  private final int n;
+
+  // Backpointers found: keys[s] is 1 + span index * variables + a, 0 for an empty slot, and
+  // splits[s] its split. Linear probing, doubled when half full
+  private long[] keys = new long[16];
+  private long[] splits = new long[16];
+  private int foundCount;
+
+  // The original variable of the node the last call to find stopped at
+  private int foundOriginal;
+
+  // The chart must say that the start variable derives w, unless w is empty
+  public CykParseTree(CompiledGrammar grammar, CykChart chart, Word w) {
+    this.grammar = grammar;
+    this.chart = chart;
+    this.w = w;
+    this.n = w.length();
+  }
+
+  // The whole tree of w, built as it is found, under the same conditions as the constructor
+  public static ParseTreeNode tree(CompiledGrammar grammar, CykChart chart, Word w) {
+    if (w.length() == 0) return ChartTrees.emptyTree(grammar);
+    return ChartTrees.build(grammar, w, (a, i, j) -> lastSplit(grammar, chart, a, i, j), w.length());
+  }
+
+  public int getLength() {
+    return n;
+  }
+
+  // The label of the root, without building anything
+  public Variable getRootVariable() {
+    CnfGrammar conversion = grammar.getConversion();
+    if (conversion != null) return conversion.getOriginalStartVariable();
+    return grammar.getOriginalVariable(grammar.getStartVariable());
+  }
+
+  // The whole tree
+  public ParseTreeNode getTree() {
+    if (n == 0) return ChartTrees.emptyTree(grammar);
+    return ChartTrees.build(grammar, w, this::findSplit, n);
+  }
+
+  // The label of the node over span (i, j), counting from 1, or null if the tree has no node over
+  // exactly that span. Only follows the backpointers down to it, but for a converted grammar
+  // restores the subtree there to see which node it is
+  public Variable getVariable(int i, int j) {
+    int a = find(i, j);
+    if (a < 0) return null;
+    if (grammar.getConversion() == null) return grammar.getOriginalVariable(foundOriginal);
+    return ChartTrees.build(grammar, w, this::findSplit, a, foundOriginal, i, j, grammar.getConversion()).getVariable();
+  }
+
+  // The subtree whose leaves are the symbols i..j, or null if the tree has no node over exactly that span
+  public ParseTreeNode getSubtree(int i, int j) {
+    int a = find(i, j);
+    if (a < 0) return null;
+    if (grammar.getConversion() == null) return ChartTrees.build(grammar, w, this::findSplit, a, foundOriginal, i, j, ChartTrees.NODES);
+    return ChartTrees.build(grammar, w, this::findSplit, a, foundOriginal, i, j, grammar.getConversion()).getNode();
+  }
+
+  // The split point of the node over span (i, j), i <= k < j, or -1 if there is no such node or it is a leaf.
+  // Of the converted tree, for a converted grammar
+  public int getSplit(int i, int j) {
+    int a = find(i, j);
+    return a < 0 || i == j ? -1 : (int)(findSplit(a, i, j) >>> 32);
+  }
+
+  // Walks down from the root to the node over span (i, j): its variable, or -1, with its
+  // original variable left in foundOriginal
+  private int find(int i, int j) {
+    if (i < 1 || j > n || i > j) return -1;
+    int a = grammar.getStartVariable(), ov = a, from = 1, to = n;
+    while (from != i || to != j) {
+      if (from == to) return -1;
+      long split = findSplit(a, from, to);
+      int k = (int)(split >>> 32), rule = (int)split;
+      if (j <= k) {
+        a = grammar.getBinaryLeft(rule);
+        ov = grammar.getOriginalLeft(ov, rule);
+        to = k;
+      } else if (i > k) {
+        a = grammar.getBinaryRight(rule);
+        ov = grammar.getOriginalRight(ov, rule);
+        from = k + 1;
+      } else {
+        return -1; // (i, j) straddles the split, so no node covers exactly it
+      }
+    }
+    foundOriginal = ov;
+    return a;
+  }
+
+  // The backpointer of variable a over span (i, j), i < j, packed as ChartTrees.split does
+  private long findSplit(int a, int i, int j) {
+    long key = 1 + chart.spanIndex(i, j) * grammar.getVariableCount() + a;
+    int slot = slot(keys, key);
+    if (keys[slot] == key) return splits[slot];
+
+    long split = lastSplit(grammar, chart, a, i, j);
+    keys[slot] = key;
+    splits[slot] = split;
+    if (++foundCount > keys.length / 2) grow();
+    return split;
+  }
+
+  // The slot of key in table, or the empty slot where it goes
+  private static int slot(long[] table, long key) {
+    int mask = table.length - 1;
+    int slot = (int)((key * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+    while (table[slot] != 0 && table[slot] != key) slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys, oldSplits = splits;
+    keys = new long[2 * oldKeys.length];
+    splits = new long[2 * oldKeys.length];
+    for (int s = 0; s < oldKeys.length; s++) {
+      if (oldKeys[s] == 0) continue;
+      int slot = slot(keys, oldKeys[s]);
+      keys[slot] = oldKeys[s];
+      splits[slot] = oldSplits[s];
+    }
+  }
+
+  // The last split point of span (i, j) with both halves non-empty, then the last rule of a that
+  // fits there, packed as ChartTrees.split does, or -1 if none
+  private static long lastSplit(CompiledGrammar grammar, CykChart chart, int a, int i, int j) {
+    int[] candidates = grammar.getBinaryRules(a);
+    for (int word = (j - 1) >>> 6; word >= i >>> 6; word--) {
+      long ks = chart.splits(i, j, word);
+      while (ks != 0) {
+        int k = (word << 6) + 63 - Long.numberOfLeadingZeros(ks);
+        ks &= ~(1L << k);
+        long left = chart.offset(i, k);
+        long right = chart.offset(k + 1, j);
+        for (int r = candidates.length - 1; r >= 0; r--) {
+          if (chart.contains(left, grammar.getBinaryLeft(candidates[r])) &&
+              chart.contains(right, grammar.getBinaryRight(candidates[r]))) {
+            return ChartTrees.split(k, candidates[r]);
+          }
+        }
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,112 @@
+import computation.contextfreegrammar.*;
+import computation.parsetree.*;
+
+// Keeps the CYK chart of one word across small edits to it, for callers such as an editor
+// that checks the same expression again after every keystroke.
+//
+// An edit replaces the symbols at positions p..p+removed-1 (counting from 0, as Word.get does)
+// with some inserted ones. A span lying wholly left of the edit covers the same symbols as
+// before, and so does a span wholly right of it, only moved along by inserted - removed.
+// Both kinds are copied over from the old chart, and only the spans reaching into the edit
+// are filled again, shortest first, with the same fillCell as CYKParser. For a short edit at
+// p in a word of length n that is about p * (n - p) spans rather than all n * n / 2.
+// A session holds mutable state, so it belongs to one caller: don't share it between threads.
+public class CykSession {
+
+  private final CompiledGrammar grammar;
+  private Symbol[] symbols = new Symbol[0];
+  private CykChart chart;
+
+  public CykSession(ContextFreeGrammar cfg, Word w) {
+    this.grammar = GrammarCache.getShared().compileOptimized(cfg);
+    this.chart = new CykChart(0, grammar.getCellWords());
+    replace(0, 0, w);
+  }
+
+  public Word getWord() {
+    return symbols.length == 0 ? Word.emptyWord : new Word(symbols);
+  }
+
+  // Inserts the symbols of w before position, or at the end when position is the length
+  public void insert(int position, Word w) {
+    replace(position, 0, w);
+  }
+
+  public void delete(int position, int length) {
+    replace(position, length, Word.emptyWord);
+  }
+
+  // Replaces the length symbols from position on with the symbols of w
+  public void replace(int position, int length, Word w) {
+
+    final int oldLength = symbols.length;
+    if (position < 0 || length < 0 || position + length > oldLength) {
+      throw new IndexOutOfBoundsException("Cannot replace " + length + " symbols at " + position + " of " + oldLength);
+    }
+
+    // 1. The edited word
+    final int inserted = w.length();
+    final int n = oldLength - length + inserted;
+    Symbol[] edited = new Symbol[n];
+    System.arraycopy(symbols, 0, edited, 0, position);
+    for (int m = 0; m < inserted; m++) edited[position + m] = w.get(m);
+    System.arraycopy(symbols, position + length, edited, position + inserted, oldLength - position - length);
+
+    // In chart terms (spans count from 1) the edit now covers positions position+1..end
+    final int end = position + inserted;
+    final int shift = inserted - length;
+    CykChart old = chart;
+    CykChart next = new CykChart(n, grammar.getCellWords());
+
+    // 2. Spans (i, j) with j <= position are unchanged, and those with i > end are
+    // unchanged but for their place
+    next.copyTriangle(old, 1, position, 0);
+    next.copyTriangle(old, end + 1 - shift, oldLength, shift);
+
+    // 3. The new symbols, then every span reaching into the edit, i <= end and j > position,
+    // by increasing length so that each one's split points are done before it
+    int[] encoded = grammar.encode(w);
+    for (int m = 0; m < inserted; m++) {
+      CYKParser.fillSymbol(grammar, next, position + m + 1, encoded[m]);
+    }
+    for (int l = 2; l <= n; l++) {
+      int last = Math.min(end, n - l + 1);
+      for (int i = Math.max(1, position - l + 2); i <= last; i++) {
+        CYKParser.fillCell(grammar, next, i, i + l - 1, ParseStats.OFF);
+      }
+    }
+
+    this.symbols = edited;
+    this.chart = next;
+  }
+
+  public boolean isInLanguage() {
+
+    if (!isValidInput()) return false;
+
+    if (symbols.length == 0) return true;
+
+    return chart.contains(chart.offset(1, symbols.length), grammar.getStartVariable());
+  }
+
+  // The same tree as CYKParser.generateParseTree gives for getWord(), null if it is not in the language
+  public ParseTreeNode getParseTree() {
+
+    if (!isInLanguage()) return null;
+
+    if (symbols.length == 0) return ChartTrees.emptyTree(grammar);
+
+    return CykParseTree.tree(grammar, chart, getWord());
+  }
+
+  private boolean isValidInput() {
+
+    if (symbols.length == 0) return grammar.isEmptyWordInLanguage();
+
+    boolean allSpaces = true;
+    for (Symbol symbol : symbols) allSpaces &= symbol.equals(new Terminal(' '));
+    if (allSpaces) return false;
+
+    return grammar.isInChomskyNormalForm();
+  }
+}
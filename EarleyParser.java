@@ -0,0 +1,328 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import computation.contextfreegrammar.*;
+import computation.parser.*;
+import computation.parsetree.*;
+
+// Earley's algorithm, which parses with the grammar's own rules: no CNF needed,
+// so unit rules, rules longer than two symbols and empty rules are all fine.
+//
+// Item set j holds the items (dotted rule, origin) that are consistent with the first j
+// symbols of w, with dotted rules numbered by CompiledGrammar. Each set is a pair of int
+// arrays plus a hash of packed longs for deduplication, and keeps, per variable, the list
+// of its items waiting on that variable so a completion only visits those. Empty rules use
+// the Aycock-Horspool rule: predicting a nullable variable also moves the dot past it.
+// For the unambiguous expression grammars in MyGrammar every set stays a handful of items,
+// so a parse is close to linear in the length of w. Right recursive rules (A -> aA) are the
+// exception: each set keeps one item per level of nesting still open, as Earley's always has.
+public class EarleyParser implements CompilingParser {
+
+  // The grammar as given, as Earley takes any grammar
+  public CompiledGrammar compile(ContextFreeGrammar cfg) {
+    return GrammarCache.getShared().compile(cfg);
+  }
+
+  public boolean isInLanguage(ContextFreeGrammar cfg, Word w) {
+
+    CompiledGrammar grammar = compile(cfg);
+
+    if (!isValidInput(w)) return false;
+
+    return recognize(grammar, w) != null;
+  }
+
+  public ParseTreeNode generateParseTree(ContextFreeGrammar cfg, Word w) {
+
+    CompiledGrammar grammar = compile(cfg);
+
+    if (!isValidInput(w)) return null;
+
+    ItemSet[] sets = recognize(grammar, w);
+    if (sets == null) return null;
+
+    return new TreeBuilder(grammar, sets).build(grammar.getStartVariable(), 0, w.length());
+  }
+
+  // Any grammar will do, so only words made of nothing but spaces are turned away up front
+  private boolean isValidInput(Word w) {
+    return w.equals(Word.emptyWord) || w.count(new Terminal(' ')) != w.length();
+  }
+
+  // Returns the item sets when w is in the language, null as soon as it cannot be
+  private ItemSet[] recognize(CompiledGrammar grammar, Word w) {
+
+    final int n = w.length();
+    final int[] encoded = grammar.encode(w);
+    final int start = grammar.getStartVariable();
+    ItemSet[] sets = new ItemSet[n + 1];
+    for (int j = 0; j <= n; j++) sets[j] = new ItemSet(grammar.getVariableCount());
+
+    // 1. Predict the start variable
+    for (int rule : grammar.getRules(start)) sets[0].add(grammar.getFirstItem(rule), 0);
+    if (grammar.isNullable(start)) sets[0].addCompleted(start, 0, 0);
+
+    for (int j = 0; j <= n; j++) {
+      ItemSet set = sets[j];
+      if (set.size == 0) return null; // Nothing survived the last symbol
+
+      // The set grows while it is processed, every added item is visited in turn
+      for (int x = 0; x < set.size; x++) {
+        int item = set.items[x];
+        int origin = set.origins[x];
+        int next = grammar.getItemNext(item);
+
+        if (next == CompiledGrammar.NO_SYMBOL) {
+          // 2. Complete: advance every item of the origin set that waits on this variable
+          int lhs = grammar.getRuleLhs(grammar.getItemRule(item));
+          set.addCompleted(lhs, origin, x);
+          if (origin == j) continue; // Empty derivation, the waiting items moved on at prediction
+          ItemSet from = sets[origin];
+          for (int waiting = from.firstWaiting[lhs]; waiting >= 0; waiting = from.nextWaiting[waiting]) {
+            set.add(from.items[waiting] + 1, from.origins[waiting]);
+          }
+        } else if (next < 0) {
+          // 3. Scan
+          if (j < n && encoded[j] == -(next + 1)) sets[j + 1].add(item + 1, origin);
+        } else {
+          // 4. Predict, the rules of a variable only need adding once per set
+          boolean predicted = set.firstWaiting[next] >= 0;
+          set.addWaiting(next, x);
+          if (!predicted) {
+            for (int rule : grammar.getRules(next)) set.add(grammar.getFirstItem(rule), j);
+          }
+          if (grammar.isNullable(next)) set.add(item + 1, origin);
+        }
+      }
+    }
+
+    return sets[n].containsCompleted(start, 0) ? sets : null;
+  }
+
+  private static class ItemSet {
+    private int size;
+    private int[] items = new int[8];
+    private int[] origins = new int[8];
+    private int[] nextWaiting = new int[8]; // next item waiting on the same variable, or -1
+    private final int[] firstWaiting; // per variable, the last item added waiting on it, or -1
+    private final LongIndex added = new LongIndex(); // (origin, item) to its index
+    private final LongIndex completed = new LongIndex(); // (origin, variable) to the index of its first completed item
+
+    public ItemSet(int variables) {
+      this.firstWaiting = new int[variables];
+      Arrays.fill(firstWaiting, -1);
+    }
+
+    public void add(int item, int origin) {
+      if (!added.add(((long)origin << 32) | item, size)) return;
+      if (size == items.length) {
+        items = Arrays.copyOf(items, size * 2);
+        origins = Arrays.copyOf(origins, size * 2);
+        nextWaiting = Arrays.copyOf(nextWaiting, size * 2);
+      }
+      items[size] = item;
+      origins[size] = origin;
+      nextWaiting[size] = -1;
+      size++;
+    }
+
+    public boolean contains(int item, int origin) {
+      return added.get(((long)origin << 32) | item) >= 0;
+    }
+
+    public void addWaiting(int variable, int index) {
+      nextWaiting[index] = firstWaiting[variable];
+      firstWaiting[variable] = index;
+    }
+
+    public void addCompleted(int variable, int origin, int index) {
+      completed.add(((long)origin << 32) | variable, index);
+    }
+
+    // True when variable derives the symbols origin+1..j of w, for this set j
+    public boolean containsCompleted(int variable, int origin) {
+      return completed.get(((long)origin << 32) | variable) >= 0;
+    }
+
+    // When variable was first completed from origin in this set, -1 if it never was
+    public int completedAt(int variable, int origin) {
+      return completed.get(((long)origin << 32) | variable);
+    }
+  }
+
+  // Open addressing hash map from non-negative longs to non-negative ints, first value kept
+  private static class LongIndex {
+    private long[] keys = new long[16]; // key + 1, 0 marks a free slot
+    private int[] values = new int[16];
+    private int count;
+
+    public boolean add(long key, int value) {
+      if ((count + 1) * 2 > keys.length) grow();
+      int slot = find(keys, key);
+      if (keys[slot] != 0) return false;
+      keys[slot] = key + 1;
+      values[slot] = value;
+      count++;
+      return true;
+    }
+
+    public int get(long key) {
+      int slot = find(keys, key);
+      return keys[slot] != 0 ? values[slot] : -1;
+    }
+
+    private static int find(long[] keys, long key) {
+      int mask = keys.length - 1;
+      int slot = (int)(key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+      while (keys[slot] != 0 && keys[slot] != key + 1) slot = (slot + 1) & mask;
+      return slot;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new int[oldKeys.length * 2];
+      for (int slot = 0; slot < oldKeys.length; slot++) {
+        if (oldKeys[slot] == 0) continue;
+        int to = find(keys, oldKeys[slot] - 1);
+        keys[to] = oldKeys[slot];
+        values[to] = oldValues[slot];
+      }
+    }
+  }
+
+  // Reads a derivation back out of the item sets, top down, using only the grammar's own rules.
+  // A variable over a span picks a rule whose completed item is in the set, then the rule's
+  // symbols are matched right to left: symbol m may start at s when the item with the dot
+  // before m is in set s and m was completed from s in the current set. That item being
+  // there means the symbols before m derive what comes before s, so no choice dead ends
+  // except through unit and empty rules, where a variable can derive a span through itself.
+  // Those are cut by only taking a child over the whole span if it was completed before
+  // its parent was, and by building empty spans from the grammar's nullable rules.
+  // Like ChartTrees the walk keeps its own stack, as trees are as deep as long words are long
+  private static class TreeBuilder {
+    private final CompiledGrammar grammar;
+    private final ItemSet[] sets;
+
+    public TreeBuilder(CompiledGrammar grammar, ItemSet[] sets) {
+      this.grammar = grammar;
+      this.sets = sets;
+    }
+
+    // The tree of variable a deriving symbols i+1..j, where the item sets already say it does
+    public ParseTreeNode build(int a, int i, int j) {
+
+      Deque<int[]> pending = new ArrayDeque<int[]>(); // { variable, i, j, rule or -1 while not expanded, bounds... }
+      Deque<ParseTreeNode> built = new ArrayDeque<ParseTreeNode>();
+      pending.push(new int[] { a, i, j, -1 });
+
+      while (!pending.isEmpty()) {
+        int[] node = pending.peek();
+
+        // 1. Empty spans need nothing from the item sets
+        if (node[1] == node[2]) {
+          pending.pop();
+          built.push(buildEmpty(node[0]));
+          continue;
+        }
+
+        // 2. First visit: choose the rule and where each of its symbols starts,
+        // then queue the variables among them, the first one on top
+        if (node[3] < 0) {
+          node = expand(node);
+          pending.pop();
+          pending.push(node);
+          for (int m = grammar.getRuleLength(node[3]) - 1; m >= 0; m--) {
+            int symbol = grammar.getRuleSymbol(node[3], m);
+            if (symbol >= 0) pending.push(new int[] { symbol, node[4 + m], node[5 + m], -1 });
+          }
+          continue;
+        }
+
+        // 3. Second visit: the variables are built, the last one on top
+        pending.pop();
+        ParseTreeNode[] children = new ParseTreeNode[grammar.getRuleLength(node[3])];
+        for (int m = children.length - 1; m >= 0; m--) {
+          int symbol = grammar.getRuleSymbol(node[3], m);
+          children[m] = symbol < 0 ? new ParseTreeNode(grammar.getTerminal(-(symbol + 1))) : built.pop();
+        }
+        built.push(new ParseTreeNode(grammar.getVariable(node[0]), children));
+      }
+
+      return built.pop();
+    }
+
+    // The node with its rule and the bounds of each symbol: symbol m derives bounds m+1..m+1
+    private int[] expand(int[] node) {
+      int a = node[0], i = node[1], j = node[2];
+      int completedAt = sets[j].completedAt(a, i);
+
+      for (int rule : grammar.getRules(a)) {
+        int length = grammar.getRuleLength(rule);
+        if (length == 0 || !sets[j].contains(grammar.getFirstItem(rule) + length, i)) continue;
+
+        int[] expanded = new int[5 + length];
+        expanded[0] = a;
+        expanded[1] = i;
+        expanded[2] = j;
+        expanded[3] = rule;
+        if (placeSymbols(rule, length, i, j, j, completedAt, expanded)) return expanded;
+      }
+      throw new IllegalStateException("No rule for " + grammar.getVariable(a) + " over (" + i + ", " + j + ")");
+    }
+
+    // Places the symbols before the dot of rule so they derive i+1..end, writing their bounds
+    private boolean placeSymbols(int rule, int dot, int i, int end, int j, int completedAt, int[] expanded) {
+      expanded[4 + dot] = end;
+      if (dot == 0) return end == i;
+
+      int symbol = grammar.getRuleSymbol(rule, dot - 1);
+      int before = grammar.getFirstItem(rule) + dot - 1;
+
+      if (symbol < 0) {
+        return end > i && sets[end - 1].contains(before, i) &&
+          placeSymbols(rule, dot - 1, i, end - 1, j, completedAt, expanded);
+      }
+
+      // With nothing before it the symbol starts where the rule does, otherwise
+      // where it was completed from, which the items of set end say
+      if (dot == 1) {
+        return fits(symbol, before, i, i, end, j, completedAt) &&
+          placeSymbols(rule, 0, i, i, j, completedAt, expanded);
+      }
+      if (fits(symbol, before, i, end, end, j, completedAt) &&
+          placeSymbols(rule, dot - 1, i, end, j, completedAt, expanded)) return true;
+
+      ItemSet set = sets[end];
+      for (int x = 0; x < set.size; x++) {
+        int s = set.origins[x];
+        if (s == end || grammar.getItemNext(set.items[x]) != CompiledGrammar.NO_SYMBOL) continue;
+        if (grammar.getRuleLhs(grammar.getItemRule(set.items[x])) != symbol) continue;
+        if (fits(symbol, before, i, s, end, j, completedAt) &&
+            placeSymbols(rule, dot - 1, i, s, j, completedAt, expanded)) return true;
+      }
+      return false;
+    }
+
+    // Whether variable symbol can derive s+1..end right after the item before, begun at i
+    private boolean fits(int symbol, int before, int i, int s, int end, int j, int completedAt) {
+      if (s < i || !sets[s].contains(before, i)) return false;
+      if (s == end) return grammar.isNullable(symbol);
+      int childAt = sets[end].completedAt(symbol, s);
+      return childAt >= 0 && !(s == i && end == j && childAt >= completedAt);
+    }
+
+    // The tree of a nullable variable deriving the empty word
+    private ParseTreeNode buildEmpty(int a) {
+      int rule = grammar.getNullableRule(a);
+      int length = grammar.getRuleLength(rule);
+      if (length == 0) return ParseTreeNode.emptyParseTree(grammar.getVariable(a));
+
+      ParseTreeNode[] children = new ParseTreeNode[length];
+      for (int m = 0; m < length; m++) children[m] = buildEmpty(grammar.getRuleSymbol(rule, m));
+      return new ParseTreeNode(grammar.getVariable(a), children);
+    }
+  }
+}
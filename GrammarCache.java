@@ -0,0 +1,95 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import computation.contextfreegrammar.*;
+
+// Bounded least-recently-used cache of CompiledGrammars, so that rule grouping,
+// rule filtering and CNF validation happen once per grammar rather than once per word.
+// Grammars are keyed by identity: a ContextFreeGrammar must not have its rules
+// changed after it has been parsed against. A grammar compiled more than one way (see
+// compileCnf and compileOptimized) takes an entry for each.
+public class GrammarCache {
+
+  public static final int DEFAULT_CAPACITY = 32;
+
+  private static final GrammarCache shared = new GrammarCache(DEFAULT_CAPACITY);
+
+  private final int capacity;
+  private final LinkedHashMap<GrammarKey, CompiledGrammar> compiled;
+
+  public GrammarCache(int capacity) {
+    if (capacity < 1) throw new IllegalArgumentException("Cache capacity must be at least 1");
+    this.capacity = capacity;
+    // Access ordered, so the eldest entry is always the least recently used
+    this.compiled = new LinkedHashMap<GrammarKey, CompiledGrammar>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<GrammarKey, CompiledGrammar> eldest) {
+        return size() > GrammarCache.this.capacity;
+      }
+    };
+  }
+
+  public static GrammarCache getShared() {
+    return shared;
+  }
+
+  public CompiledGrammar compile(ContextFreeGrammar cfg) {
+    return compile(cfg, false, false);
+  }
+
+  // The grammar converted to CNF by CnfGrammar first when it is not in CNF already, for the
+  // engines that need CNF. The conversion is cached along with the rest
+  public CompiledGrammar compileCnf(ContextFreeGrammar cfg) {
+    return compile(cfg, true, false);
+  }
+
+  // As compileCnf, then reduced by OptimizedGrammar, for the CYK engines. Engines that count or
+  // list every parse tree need the grammar as given, merged variables would change the count
+  public CompiledGrammar compileOptimized(ContextFreeGrammar cfg) {
+    return compile(cfg, true, true);
+  }
+
+  private CompiledGrammar compile(ContextFreeGrammar cfg, boolean convert, boolean optimize) {
+    GrammarKey key = new GrammarKey(cfg, convert, optimize);
+    synchronized (this) {
+      CompiledGrammar grammar = compiled.get(key);
+      if (grammar != null) return grammar;
+    }
+
+    // Compile outside the lock, two threads racing on a new grammar just both compile it
+    CompiledGrammar grammar = new CompiledGrammar(cfg, convert, optimize);
+    synchronized (this) {
+      CompiledGrammar existing = compiled.putIfAbsent(key, grammar);
+      return existing == null ? grammar : existing;
+    }
+  }
+
+  public synchronized int size() {
+    return compiled.size();
+  }
+
+  public synchronized void clear() {
+    compiled.clear();
+  }
+
+  private static class GrammarKey {
+    private final ContextFreeGrammar cfg;
+    private final boolean convert;
+    private final boolean optimize;
+
+    public GrammarKey(ContextFreeGrammar cfg, boolean convert, boolean optimize) {
+      this.cfg = cfg;
+      this.convert = convert;
+      this.optimize = optimize;
+    }
+
+    public boolean equals(Object other) {
+      if (!(other instanceof GrammarKey)) return false;
+      GrammarKey key = (GrammarKey)other;
+      return key.cfg == this.cfg && key.convert == this.convert && key.optimize == this.optimize;
+    }
+
+    public int hashCode() {
+      return 4 * System.identityHashCode(cfg) + (convert ? 2 : 0) + (optimize ? 1 : 0);
+    }
+  }
+}
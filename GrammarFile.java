@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import computation.contextfreegrammar.*;
+
+// CompiledGrammars on disk, so a process can parse without building its grammars first:
+// save a grammar once, then every process loads it with a few bulk copies out of a read only
+// memory mapping. Only the file's pages are shared between processes, through the OS page cache:
+// each process copies the tables into arrays on its own heap.
+//
+// The file is a header, then every table of the grammar in the order CompiledGrammar.write puts them,
+// starting with those of its CNF conversion when it has one (see CnfGrammar.write):
+// - header: MAGIC, VERSION, then the length of the rest, all ints
+// - int, char, boolean: 4, 2 and 1 bytes
+// - string: its length, then its chars
+// - int[] and boolean[]: the length, or -1 for null, then the elements
+// - long[]: the same, padded to a multiple of 8 bytes before the elements
+// - int[][] and long[][]: the number of rows, then each row as above
+// All little endian. A file of another version is refused rather than read, so change VERSION
+// with any change to the layout.
+public final class GrammarFile {
+
+  public static final int MAGIC = 0x47464343; // "CCFG" in the file
+  public static final int VERSION = 3;
+
+  private static final int HEADER = 12;
+
+  private GrammarFile() {}
+
+  // Writes the grammar to path, replacing what is there in one move so a process loading it
+  // at the same time sees either the old file or the new one
+  public static void save(CompiledGrammar grammar, Path path) throws IOException {
+    Writer out = new Writer();
+    out.putInt(MAGIC);
+    out.putInt(VERSION);
+    out.putInt(0);
+    grammar.write(out);
+    ByteBuffer bytes = out.finish();
+    bytes.putInt(8, bytes.limit() - HEADER);
+
+    Path dir = path.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        while (bytes.hasRemaining()) channel.write(bytes);
+        channel.force(false);
+      }
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  public static CompiledGrammar load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Not a compiled grammar file: " + path);
+      }
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      ByteBuffer bytes = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+      if (bytes.getInt() != MAGIC) throw new IOException("Not a compiled grammar file: " + path);
+      int version = bytes.getInt();
+      if (version != VERSION) {
+        throw new IOException("Compiled grammar file " + path + " is version " + version + ", expected " + VERSION);
+      }
+      if (bytes.getInt() != bytes.remaining()) throw new IOException("Truncated compiled grammar file: " + path);
+
+      try {
+        Reader in = new Reader(bytes);
+        CompiledGrammar grammar = new CompiledGrammar(in);
+        if (bytes.hasRemaining()) throw new IOException("Corrupt compiled grammar file: " + path);
+        return grammar;
+      } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+        throw new IOException("Corrupt compiled grammar file: " + path, e);
+      }
+    }
+  }
+
+  // The bytes save would write after the header, which hold the rules of the grammar as given
+  // when there is a conversion
+  static byte[] tables(CompiledGrammar grammar) {
+    Writer out = new Writer();
+    grammar.write(out);
+    ByteBuffer buffer = out.finish();
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  // FNV-1a over the tables. Never 0, which CompiledGrammar.getFingerprint keeps for not yet known
+  static long fingerprint(byte[] tables) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : tables) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash == 0 ? 1 : hash;
+  }
+
+  // Appends values to a buffer that doubles when full
+  static final class Writer {
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+
+    void putInt(int value) {
+      ensure(4).putInt(value);
+    }
+
+    void putChar(char value) {
+      ensure(2).putChar(value);
+    }
+
+    void putBoolean(boolean value) {
+      ensure(1).put((byte)(value ? 1 : 0));
+    }
+
+    void putString(String value) {
+      putInt(value.length());
+      for (int c = 0; c < value.length(); c++) putChar(value.charAt(c));
+    }
+
+    void putInts(int[] values) {
+      putInt(values == null ? -1 : values.length);
+      if (values == null) return;
+      ensure(4 * values.length).asIntBuffer().put(values);
+      buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    void putBooleans(boolean[] values) {
+      putInt(values == null ? -1 : values.length);
+      if (values == null) return;
+      for (boolean value : values) putBoolean(value);
+    }
+
+    void putLongs(long[] values) {
+      putInt(values == null ? -1 : values.length);
+      if (values == null) return;
+      ensure(7 + 8 * values.length);
+      buffer.position((buffer.position() + 7) & ~7);
+      buffer.asLongBuffer().put(values);
+      buffer.position(buffer.position() + 8 * values.length);
+    }
+
+    void putIntRows(int[][] rows) {
+      putInt(rows == null ? -1 : rows.length);
+      if (rows == null) return;
+      for (int[] row : rows) putInts(row);
+    }
+
+    void putLongRows(long[][] rows) {
+      putInt(rows == null ? -1 : rows.length);
+      if (rows == null) return;
+      for (long[] row : rows) putLongs(row);
+    }
+
+    // The bytes written, ready to be read from the start
+    ByteBuffer finish() {
+      buffer.flip();
+      return buffer;
+    }
+
+    private ByteBuffer ensure(int bytes) {
+      if (buffer.remaining() < bytes) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+      }
+      return buffer;
+    }
+  }
+
+  // Reads the values back in the same order. Arrays come out with one bulk copy each; longs are
+  // 8 byte aligned in the file, and with the mapping starting on a page so in memory
+  static final class Reader {
+    private final ByteBuffer buffer;
+
+    Reader(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    int getInt() {
+      return buffer.getInt();
+    }
+
+    char getChar() {
+      return buffer.getChar();
+    }
+
+    boolean getBoolean() {
+      return buffer.get() != 0;
+    }
+
+    String getString() {
+      char[] chars = new char[length(2)];
+      for (int c = 0; c < chars.length; c++) chars[c] = buffer.getChar();
+      return new String(chars);
+    }
+
+    int[] getInts() {
+      int length = length(4);
+      if (length < 0) return null;
+      int[] values = new int[length];
+      buffer.asIntBuffer().get(values);
+      buffer.position(buffer.position() + 4 * length);
+      return values;
+    }
+
+    boolean[] getBooleans() {
+      int length = length(1);
+      if (length < 0) return null;
+      boolean[] values = new boolean[length];
+      for (int v = 0; v < length; v++) values[v] = buffer.get() != 0;
+      return values;
+    }
+
+    long[] getLongs() {
+      int length = length(8);
+      if (length < 0) return null;
+      buffer.position((buffer.position() + 7) & ~7);
+      long[] values = new long[length];
+      buffer.asLongBuffer().get(values);
+      buffer.position(buffer.position() + 8 * length);
+      return values;
+    }
+
+    int[][] getIntRows() {
+      int length = length(4);
+      if (length < 0) return null;
+      int[][] rows = new int[length][];
+      for (int r = 0; r < length; r++) rows[r] = getInts();
+      return rows;
+    }
+
+    long[][] getLongRows() {
+      int length = length(4);
+      if (length < 0) return null;
+      long[][] rows = new long[length][];
+      for (int r = 0; r < length; r++) rows[r] = getLongs();
+      return rows;
+    }
+
+    // A length read back, checked against what is left, so a corrupt file fails as one rather
+    // than by allocating a huge array
+    private int length(int bytesEach) {
+      int length = buffer.getInt();
+      if (length > buffer.remaining() / bytesEach) throw new BufferUnderflowException();
+      return length;
+    }
+  }
+}
@@ -10,6 +10,10 @@ import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -79,6 +83,19 @@ class Main {
       System.out.println("Tree: \n" + cykParser.generateParseTree(cfg, e));
     });
 
+    concurrentParseCheck();
+
+    // The same words checked as one batch across all cores, results come back in input order
+    List<Word> batch = Arrays.asList(new Word("1*-0*-1+0*-1"), new Word("1*0+--1+0*1"), new Word("0+-1*-0+1*1"));
+    System.out.println("Batch " + batch + ": " + new BatchParser(cykParser).isInLanguage(cfg, batch));
+
+    // An editing session keeps the chart between edits and only refills the spans each edit reaches
+    CykSession session = new CykSession(cfg, new Word("1*-0*-1+0*-1"));
+    session.insert(session.getWord().length(), new Word("+"));
+    System.out.println("Session " + session.getWord() + ": " + session.isInLanguage());
+    session.insert(session.getWord().length(), new Word("x"));
+    System.out.println("Session " + session.getWord() + ": " + session.isInLanguage());
+
 // ***************************
 
     // // FALSE Simple cases
@@ -159,6 +176,69 @@ class Main {
     printCase(cfg, testCase, expectedResult, USE_CYK ? cykParser : parser);
   }
 
+  // Stress test for sharing one parser instance between threads:
+  // two different grammars are parsed at the same time through the same parser objects
+  // and every result must match the one computed on a single thread
+  private static void concurrentParseCheck() {
+    final List<ContextFreeGrammar> grammars = Arrays.asList(MyGrammar.makeGrammar2(), ContextFreeGrammar.simpleCNF());
+    final List<List<Word>> words = Arrays.asList(
+      Arrays.asList(new Word("1+0"), new Word("-0*1"), new Word("01"), new Word("1*-0*-1+0*-1"), new Word("1*0+--1+0*1")),
+      Arrays.asList(new Word("01"), new Word("0011"), new Word("1011"), new Word("000111"), new Word("0001111"))
+    );
+    final List<IParser> parsers = Arrays.asList(parser, cykParser);
+    final int maxDerivationLength = 4; // Keep Algorithm #1 to words it can enumerate quickly
+
+    List<List<ParseTreeNode>> expected = new ArrayList<>();
+    for (IParser p : parsers) {
+      for (int g = 0; g < grammars.size(); g++) {
+        final ContextFreeGrammar cfg = grammars.get(g);
+        expected.add(words.get(g).stream()
+          .map(w -> p == parser && w.length() > maxDerivationLength ? null : p.generateParseTree(cfg, w))
+          .collect(Collectors.toList()));
+      }
+    }
+
+    final int threads = Runtime.getRuntime().availableProcessors() * 2;
+    final int iterations = 200;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> failures = new ArrayList<>();
+
+    for (int t = 0; t < threads; t++) {
+      final int offset = t;
+      failures.add(executor.submit(() -> {
+        start.await();
+        int failed = 0;
+        for (int i = 0; i < iterations; i++) {
+          // Alternate the grammar per thread so both are always being parsed at once
+          int p = (i + offset) % parsers.size();
+          int g = (i / parsers.size() + offset) % grammars.size();
+          for (int k = 0; k < words.get(g).size(); k++) {
+            Word w = words.get(g).get(k);
+            if (p == 0 && w.length() > maxDerivationLength) continue;
+            ParseTreeNode result = parsers.get(p).generateParseTree(grammars.get(g), w);
+            ParseTreeNode expectedResult = expected.get(p * grammars.size() + g).get(k);
+            if (result == null ? expectedResult != null : !result.equals(expectedResult)) failed++;
+          }
+        }
+        return failed;
+      }));
+    }
+
+    start.countDown();
+    int failed = 0;
+    try {
+      for (Future<Integer> f : failures) failed += f.get();
+    } catch (Exception e) {
+      System.out.println("Concurrent parse check threw: " + e);
+      failed++;
+    } finally {
+      executor.shutdown();
+    }
+
+    System.out.println("Concurrent parse check on " + threads + " threads: " + (failed == 0 ? "PASS" : "FAIL (" + failed + " mismatches)"));
+  }
+
   private static List<Word> concatTestCases(List<Word> baseCases, List<Word> algo2Cases) {
     return Stream.concat(baseCases.stream(), USE_CYK ? algo2Cases.stream() : Stream.empty()).collect(Collectors.toList());
   }
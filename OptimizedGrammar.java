@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import computation.contextfreegrammar.*;
+
+// A smaller grammar for the language of a CNF grammar, for the CYK engines to fill their charts with
+// (see GrammarCache.compileOptimized), and the way back to the variables of the original.
+//
+// 1. Variables that derive no word are dropped, with every rule using them
+// 2. So are variables the start variable never reaches
+// 3. Variables with the same expansions are merged, and merged again while merging makes
+//    more of them equal: S -> EG | 1 and E -> EG | 1 are one variable, and so are
+//    A -> a and B -> a, after which X -> AC and Y -> BC are too
+// 4. Rules that became equal are kept once
+// Each merged class of variables is named after one of them, the start variable for its own
+// class, else the first in grammar order. Merging the start variable with another lets it
+// appear on the right hand side, harmless for CYK. (A start variable with an empty expansion
+// never merges, as no other variable of a CNF grammar can have one.)
+// A parse tree over the optimized grammar maps back top down: a node of original variable V
+// expanded by an optimized rule X -> YZ came from a rule V -> Y'Z' with Y' and Z' named Y and Z,
+// found by getOriginalRule, and Y' and Z' are the original variables of the children.
+public final class OptimizedGrammar {
+
+  private final ContextFreeGrammar original;
+  private final ContextFreeGrammar optimized;
+  private final List<Variable> originalVariables = new ArrayList<Variable>(); // the ones kept, start first
+  private final Map<Variable, Variable> representative = new HashMap<Variable, Variable>();
+  private final Map<Variable, Map<List<Symbol>, Rule>> originalRules = new HashMap<Variable, Map<List<Symbol>, Rule>>();
+
+  public OptimizedGrammar(ContextFreeGrammar cfg) {
+    this.original = cfg;
+    Variable start = cfg.getStartVariable();
+
+    // 1. Generating variables, to a fixpoint
+    Set<Variable> generating = new HashSet<Variable>();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Rule rule : cfg.getRules()) {
+        if (!generating.contains(rule.getVariable()) && allIn(rule.getExpansion(), generating)) {
+          generating.add(rule.getVariable());
+          changed = true;
+        }
+      }
+    }
+    List<Rule> rules = new ArrayList<Rule>();
+    for (Rule rule : cfg.getRules()) {
+      if (generating.contains(rule.getVariable()) && allIn(rule.getExpansion(), generating)) rules.add(rule);
+    }
+
+    // 2. Reachable variables, in order of first appearance from the start variable
+    Set<Variable> reachable = new LinkedHashSet<Variable>();
+    reachable.add(start);
+    changed = true;
+    while (changed) {
+      changed = false;
+      for (Rule rule : rules) {
+        if (!reachable.contains(rule.getVariable())) continue;
+        for (Symbol symbol : rule.getExpansion()) {
+          if (!symbol.isTerminal() && reachable.add((Variable)symbol)) changed = true;
+        }
+      }
+    }
+    rules.removeIf(rule -> !reachable.contains(rule.getVariable()));
+    originalVariables.addAll(reachable);
+
+    // 3. Merge variables with the same expansions, written in terms of the current classes,
+    // until the number of classes stops falling. Classes only ever merge, never split.
+    // Each rule is encoded once as its variable's index and symbols, and each round as a long
+    // (see expansionCode), so a variable's expansions are a sorted long[]
+    Map<Variable, Integer> index = new HashMap<Variable, Integer>();
+    for (int v = 0; v < originalVariables.size(); v++) index.put(originalVariables.get(v), v);
+    Map<Symbol, Integer> terminals = new HashMap<Symbol, Integer>();
+    int[] ruleLhs = new int[rules.size()];
+    int[][] ruleBody = new int[rules.size()][];
+    int[] ruleCount = new int[originalVariables.size()];
+    for (int r = 0; r < rules.size(); r++) {
+      Word expansion = rules.get(r).getExpansion();
+      ruleLhs[r] = index.get(rules.get(r).getVariable());
+      ruleCount[ruleLhs[r]]++;
+      ruleBody[r] = new int[expansion.length()];
+      for (int x = 0; x < expansion.length(); x++) {
+        Symbol symbol = expansion.get(x);
+        ruleBody[r][x] = symbol.isTerminal() ? -terminals.computeIfAbsent(symbol, t -> terminals.size() + 1) : index.get(symbol);
+      }
+      boolean cnf = ruleBody[r].length == 0 || (ruleBody[r].length == 1 && ruleBody[r][0] < 0) ||
+        (ruleBody[r].length == 2 && ruleBody[r][0] >= 0 && ruleBody[r][1] >= 0);
+      if (!cnf) throw new IllegalArgumentException("Not a rule of a CNF grammar: " + rules.get(r));
+    }
+
+    int[] classOf = new int[originalVariables.size()];
+    for (int v = 0; v < classOf.length; v++) classOf[v] = v;
+    int classes = classOf.length;
+    while (true) {
+      long[][] expansions = new long[classOf.length][];
+      int[] filled = new int[classOf.length];
+      for (int v = 0; v < classOf.length; v++) expansions[v] = new long[ruleCount[v]];
+      for (int r = 0; r < ruleLhs.length; r++) expansions[ruleLhs[r]][filled[ruleLhs[r]]++] = expansionCode(ruleBody[r], classOf);
+
+      Map<Signature, Integer> merged = new HashMap<Signature, Integer>();
+      int[] next = new int[classOf.length];
+      for (int v = 0; v < classOf.length; v++) {
+        Signature signature = new Signature(expansions[v]);
+        Integer id = merged.putIfAbsent(signature, merged.size());
+        next[v] = id == null ? merged.size() - 1 : id;
+      }
+      classOf = next;
+      if (merged.size() == classes) break;
+      classes = merged.size();
+    }
+
+    // Classes are numbered by their first variable, start first, which names them
+    Variable[] names = new Variable[classes];
+    for (Variable variable : originalVariables) {
+      int id = classOf[index.get(variable)];
+      if (names[id] == null) names[id] = variable;
+      representative.put(variable, names[id]);
+    }
+
+    // 4. The rules in terms of the classes, each kept once, and for each original variable
+    // its first rule behind every optimized expansion
+    LinkedHashMap<List<Symbol>, Rule> optimizedRules = new LinkedHashMap<List<Symbol>, Rule>();
+    for (Rule rule : rules) {
+      List<Symbol> expansion = named(rule.getExpansion());
+      originalRules.computeIfAbsent(rule.getVariable(), v -> new HashMap<List<Symbol>, Rule>()).putIfAbsent(expansion, rule);
+
+      Variable lhs = representative.get(rule.getVariable());
+      List<Symbol> key = new ArrayList<Symbol>(expansion);
+      key.add(0, lhs);
+      if (!optimizedRules.containsKey(key)) {
+        Word word = expansion.isEmpty() ? Word.emptyWord : new Word(expansion.toArray(new Symbol[0]));
+        optimizedRules.put(key, new Rule(lhs, word));
+      }
+    }
+
+    this.optimized = new ContextFreeGrammar(new HashSet<Variable>(Arrays.asList(names)), cfg.getTerminals(),
+      new ArrayList<Rule>(optimizedRules.values()), start);
+  }
+
+  public ContextFreeGrammar getOriginal() {
+    return original;
+  }
+
+  public ContextFreeGrammar getGrammar() {
+    return optimized;
+  }
+
+  // The original variables that can take part in a parse tree, start variable first
+  public List<Variable> getOriginalVariables() {
+    return originalVariables;
+  }
+
+  // The variable of the optimized grammar standing for an original one, null if it was dropped
+  public Variable getRepresentative(Variable variable) {
+    return representative.get(variable);
+  }
+
+  // The first rule of original variable v that became an optimized rule with this expansion,
+  // null if none did
+  public Rule getOriginalRule(Variable v, Word expansion) {
+    Map<List<Symbol>, Rule> rules = originalRules.get(v);
+    if (rules == null) return null;
+    List<Symbol> key = new ArrayList<Symbol>();
+    for (Symbol symbol : expansion) key.add(symbol);
+    return rules.get(key);
+  }
+
+  // A rule's expansion in terms of classes: Long.MIN_VALUE when empty, the terminal's negative
+  // code for one terminal, and the classes of two variables packed as (b << 32) | c
+  private static long expansionCode(int[] body, int[] classOf) {
+    if (body.length == 0) return Long.MIN_VALUE;
+    if (body.length == 1) return body[0];
+    return ((long)classOf[body[0]] << 32) | classOf[body[1]];
+  }
+
+  private List<Symbol> named(Word expansion) {
+    List<Symbol> symbols = new ArrayList<Symbol>();
+    for (Symbol symbol : expansion) symbols.add(symbol.isTerminal() ? symbol : representative.get(symbol));
+    return symbols;
+  }
+
+  // The set of a variable's expansion codes, compared by content
+  private static final class Signature {
+    private final long[] codes;
+    private final int hash;
+
+    Signature(long[] codes) {
+      Arrays.sort(codes);
+      int distinct = 0;
+      for (int i = 0; i < codes.length; i++) {
+        if (i == 0 || codes[i] != codes[i - 1]) codes[distinct++] = codes[i];
+      }
+      this.codes = Arrays.copyOf(codes, distinct);
+      this.hash = Arrays.hashCode(this.codes);
+    }
+
+    public boolean equals(Object other) {
+      return other instanceof Signature && Arrays.equals(((Signature)other).codes, codes);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static boolean allIn(Word expansion, Set<Variable> variables) {
+    for (Symbol symbol : expansion) {
+      if (!symbol.isTerminal() && !variables.contains(symbol)) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,90 @@
+// Limits on what a single parse may use, checked as the parse goes (see Parser.parse and CYKParser.parse):
+// - nodes: sentential forms created for Parser, chart cells for CYKParser
+// - bytes: an estimate of the memory the parse holds at once, taken before it is allocated
+// - steps: expansions tried for Parser, split points visited for CYKParser
+// A parse that would go over any of them stops with ParseResult.Status.BUDGET_EXCEEDED, so one
+// pathological word costs at most its budget and never the heap of the whole JVM.
+public final class ParseBudget {
+
+  public static final ParseBudget UNLIMITED = new ParseBudget(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+  private final long maxNodes;
+  private final long maxBytes;
+  private final long maxSteps;
+
+  public ParseBudget(long maxNodes, long maxBytes, long maxSteps) {
+    this.maxNodes = maxNodes;
+    this.maxBytes = maxBytes;
+    this.maxSteps = maxSteps;
+  }
+
+  public long getMaxNodes() {
+    return maxNodes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getMaxSteps() {
+    return maxSteps;
+  }
+
+  // A fresh meter for one parse
+  public Meter start() {
+    return new Meter(this);
+  }
+
+  // What one parse has used of its budget. Plain counters, so a parse that works in parallel
+  // adds up the share of its workers on one thread
+  public static class Meter {
+    private final ParseBudget budget;
+    private long nodes;
+    private long bytes;
+    private long steps;
+
+    private Meter(ParseBudget budget) {
+      this.budget = budget;
+    }
+
+    // Records count more nodes taking bytes more memory, or throws if that is over the budget
+    public void addNodes(long count, long bytes) {
+      this.nodes += count;
+      this.bytes += bytes;
+      if (this.nodes > budget.maxNodes) throw new ExceededException("nodes", this.nodes, budget.maxNodes);
+      if (this.bytes > budget.maxBytes) throw new ExceededException("bytes", this.bytes, budget.maxBytes);
+    }
+
+    // Memory the parse no longer holds
+    public void releaseBytes(long bytes) {
+      this.bytes -= bytes;
+    }
+
+    public void addSteps(long count) {
+      this.steps += count;
+      if (this.steps > budget.maxSteps) throw new ExceededException("steps", this.steps, budget.maxSteps);
+    }
+
+    public long getNodes() {
+      return nodes;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public long getSteps() {
+      return steps;
+    }
+  }
+
+  // Unwinds a parse that went over its budget, the parse turns it into its ParseResult
+  public static class ExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ExceededException(String limit, long used, long max) {
+      super("Parse budget exceeded: " + used + " " + limit + " over the limit of " + max);
+    }
+  }
+}
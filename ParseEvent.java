@@ -0,0 +1,61 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// One parse as a JFR event, committed by ParseStats.finish. Its duration is the whole parse,
+// the fields split it into phases. Recorded with the default settings or any that enable
+// cfgparser.Parse, e.g. jcmd <pid> JFR.start settings=profile, and give it a threshold there
+// to keep only the slow parses
+@Name("cfgparser.Parse")
+@Label("Parse")
+@Category("cfg_parser")
+@Description("A single isInLanguage, generateParseTree or parse call of a parser")
+@StackTrace(false)
+class ParseEvent extends Event {
+
+  @Label("Engine")
+  String engine;
+
+  @Label("Word Length")
+  int wordLength;
+
+  @Label("Outcome")
+  @Description("IN_LANGUAGE, NOT_IN_LANGUAGE or BUDGET_EXCEEDED, see ParseResult.Status")
+  String outcome;
+
+  @Label("Grammar Preparation")
+  @Timespan
+  long prepareNanos;
+
+  @Label("Terminal Fill")
+  @Timespan
+  long terminalFillNanos;
+
+  @Label("Binary Rule Fill")
+  @Timespan
+  long binaryFillNanos;
+
+  @Label("Derivation Search")
+  @Timespan
+  long searchNanos;
+
+  @Label("Tree Construction")
+  @Timespan
+  long treeNanos;
+
+  @Label("Cells Filled")
+  long cellsFilled;
+
+  @Label("Non-empty Cells")
+  long nonEmptyCells;
+
+  @Label("Rule Checks")
+  long ruleChecks;
+
+  @Label("Rule Applications")
+  long ruleApplications;
+}
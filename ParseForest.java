@@ -0,0 +1,225 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import computation.contextfreegrammar.*;
+
+// Every parse tree of a word under a CNF grammar, as a shared packed parse forest (SPPF).
+//
+// There is one node per variable and span (A, i, j) that takes part in some parse tree, and
+// each node holds one packed alternative per way A derives the span: a rule A -> BC with a
+// split point k, pointing at the nodes (B, i, k) and (C, k + 1, j). Nodes are stored once
+// however many trees share them, so the forest of a word of length n has at most |V| n^2 / 2
+// nodes and |rules| n^3 / 6 alternatives, while the number of trees can grow exponentially.
+// Trees are counted over the forest, shortest spans first, without building any of them.
+// Node 0 is the root, (start, 1, n). Spans count from 1 as in CYKParser.
+public class ParseForest {
+
+  private final CompiledGrammar grammar;
+  private final Word w;
+  private final Map<Long, Integer> ids = new HashMap<Long, Integer>();
+
+  private int nodeCount;
+  private int[] nodeVariable = new int[16];
+  private int[] nodeStart = new int[16];
+  private int[] nodeEnd = new int[16];
+  private int[] firstPacked = new int[17]; // alternatives of node x: firstPacked[x]..firstPacked[x + 1]
+
+  private int packedCount;
+  private int[] packedSplit = new int[16];
+  private int[] packedLeft = new int[16];
+  private int[] packedRight = new int[16];
+
+  // The forest of w, which the chart says the start variable derives
+  public ParseForest(CompiledGrammar grammar, CykChart chart, Word w) {
+    this.grammar = grammar;
+    this.w = w;
+    final int n = w.length();
+
+    // The empty word: a root leaf without a terminal
+    nodeId(grammar.getStartVariable(), 1, n);
+    if (n == 0) {
+      firstPacked[1] = 0;
+      return;
+    }
+
+    // Nodes are numbered as they are found and expanded in that order,
+    // so the alternatives of each node are added together, after those of the node before
+    for (int node = 0; node < nodeCount; node++) {
+      firstPacked[node] = packedCount;
+      int a = nodeVariable[node], i = nodeStart[node], j = nodeEnd[node];
+      if (i == j) continue; // A leaf, a -> w[i]
+
+      int[] rules = grammar.getBinaryRules(a);
+      for (int word = i >>> 6; word <= (j - 1) >>> 6; word++) {
+        long splits = chart.splits(i, j, word);
+        while (splits != 0) {
+          int k = (word << 6) + Long.numberOfTrailingZeros(splits);
+          splits &= splits - 1;
+          long left = chart.offset(i, k);
+          long right = chart.offset(k + 1, j);
+
+          for (int rule : rules) {
+            int b = grammar.getBinaryLeft(rule);
+            int c = grammar.getBinaryRight(rule);
+            if (chart.contains(left, b) && chart.contains(right, c)) {
+              addPacked(k, nodeId(b, i, k), nodeId(c, k + 1, j));
+            }
+          }
+        }
+      }
+    }
+    firstPacked[nodeCount] = packedCount;
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  public int getPackedCount() {
+    return packedCount;
+  }
+
+  public Variable getVariable(int node) {
+    return grammar.getVariable(nodeVariable[node]);
+  }
+
+  public int getStart(int node) {
+    return nodeStart[node];
+  }
+
+  public int getEnd(int node) {
+    return nodeEnd[node];
+  }
+
+  // A leaf derives a single symbol (or, for the empty word, nothing) and has no alternatives
+  public boolean isLeaf(int node) {
+    return nodeStart[node] >= nodeEnd[node];
+  }
+
+  // The symbol under a leaf, null for the empty word
+  public Terminal getTerminal(int node) {
+    return nodeStart[node] == nodeEnd[node] ? (Terminal)w.get(nodeStart[node] - 1) : null;
+  }
+
+  public int getAlternativeCount(int node) {
+    return firstPacked[node + 1] - firstPacked[node];
+  }
+
+  // The rule of an alternative is A -> BC for the variables of the node and its two children.
+  // The split point k of alternative alt of a node: its children cover (i, k) and (k + 1, j)
+  public int getSplit(int node, int alt) {
+    return packedSplit[firstPacked[node] + alt];
+  }
+
+  public int getLeftChild(int node, int alt) {
+    return packedLeft[firstPacked[node] + alt];
+  }
+
+  public int getRightChild(int node, int alt) {
+    return packedRight[firstPacked[node] + alt];
+  }
+
+  // Every node is reachable from the root and every alternative leads to complete trees,
+  // so there is more than one tree exactly when some node has more than one alternative
+  public boolean isAmbiguous() {
+    for (int node = 0; node < nodeCount; node++) {
+      if (getAlternativeCount(node) > 1) return true;
+    }
+    return false;
+  }
+
+  // Number of distinct parse trees modulo 2^64, as long arithmetic wraps
+  public long countTrees() {
+    long[] counts = new long[nodeCount];
+    for (int node : bottomUp()) {
+      if (isLeaf(node)) {
+        counts[node] = 1;
+        continue;
+      }
+      for (int p = firstPacked[node]; p < firstPacked[node + 1]; p++) {
+        counts[node] += counts[packedLeft[p]] * counts[packedRight[p]];
+      }
+    }
+    return counts[0];
+  }
+
+  // Number of distinct parse trees, however large
+  public BigInteger countTreesExact() {
+    BigInteger[] counts = new BigInteger[nodeCount];
+    for (int node : bottomUp()) {
+      counts[node] = isLeaf(node) ? BigInteger.ONE : BigInteger.ZERO;
+      for (int p = firstPacked[node]; p < firstPacked[node + 1]; p++) {
+        counts[node] = counts[node].add(counts[packedLeft[p]].multiply(counts[packedRight[p]]));
+      }
+    }
+    return counts[0];
+  }
+
+  // One line per node: A[i,j] -> B[i,k] C[k+1,j] | ...
+  public String toString() {
+    StringBuilder out = new StringBuilder();
+    for (int node = 0; node < nodeCount; node++) {
+      out.append(label(node)).append(" ->");
+      if (isLeaf(node)) out.append(' ').append(getTerminal(node) == null ? "ε" : getTerminal(node));
+      for (int alt = 0; alt < getAlternativeCount(node); alt++) {
+        if (alt > 0) out.append(" |");
+        out.append(' ').append(label(getLeftChild(node, alt))).append(' ').append(label(getRightChild(node, alt)));
+      }
+      out.append('\n');
+    }
+    return out.toString();
+  }
+
+  private String label(int node) {
+    return getVariable(node) + "[" + nodeStart[node] + "," + nodeEnd[node] + "]";
+  }
+
+  // Node ids ordered by span length, so children always come before their parents
+  private int[] bottomUp() {
+    int n = w.length();
+    int[] starts = new int[n + 2];
+    for (int node = 0; node < nodeCount; node++) starts[spanLength(node) + 1]++;
+    for (int l = 1; l <= n + 1; l++) starts[l] += starts[l - 1];
+    int[] order = new int[nodeCount];
+    for (int node = 0; node < nodeCount; node++) order[starts[spanLength(node)]++] = node;
+    return order;
+  }
+
+  private int spanLength(int node) {
+    return Math.max(0, nodeEnd[node] - nodeStart[node] + 1);
+  }
+
+  // The node of variable a over span (i, j), added if it is new
+  private int nodeId(int a, int i, int j) {
+    long size = w.length() + 2;
+    long key = ((long)a * size + i) * size + j;
+    Integer id = ids.get(key);
+    if (id != null) return id;
+
+    if (nodeCount == nodeVariable.length) {
+      nodeVariable = Arrays.copyOf(nodeVariable, nodeCount * 2);
+      nodeStart = Arrays.copyOf(nodeStart, nodeCount * 2);
+      nodeEnd = Arrays.copyOf(nodeEnd, nodeCount * 2);
+      firstPacked = Arrays.copyOf(firstPacked, nodeCount * 2 + 1);
+    }
+    nodeVariable[nodeCount] = a;
+    nodeStart[nodeCount] = i;
+    nodeEnd[nodeCount] = j;
+    ids.put(key, nodeCount);
+    return nodeCount++;
+  }
+
+  private void addPacked(int k, int left, int right) {
+    if (packedCount == packedSplit.length) {
+      packedSplit = Arrays.copyOf(packedSplit, packedCount * 2);
+      packedLeft = Arrays.copyOf(packedLeft, packedCount * 2);
+      packedRight = Arrays.copyOf(packedRight, packedCount * 2);
+    }
+    packedSplit[packedCount] = k;
+    packedLeft[packedCount] = left;
+    packedRight[packedCount] = right;
+    packedCount++;
+  }
+}
@@ -0,0 +1,58 @@
+import computation.parsetree.*;
+
+// The outcome of a parse under a ParseBudget: the word is in the language (with its parse tree),
+// it is not, or the parse ran out of budget before it could tell
+public final class ParseResult {
+
+  public enum Status { IN_LANGUAGE, NOT_IN_LANGUAGE, BUDGET_EXCEEDED }
+
+  private static final ParseResult NOT_IN_LANGUAGE = new ParseResult(Status.NOT_IN_LANGUAGE, null, null);
+
+  private final Status status;
+  private final ParseTreeNode tree;
+  private final String reason;
+
+  private ParseResult(Status status, ParseTreeNode tree, String reason) {
+    this.status = status;
+    this.tree = tree;
+    this.reason = reason;
+  }
+
+  public static ParseResult inLanguage(ParseTreeNode tree) {
+    return new ParseResult(Status.IN_LANGUAGE, tree, null);
+  }
+
+  public static ParseResult notInLanguage() {
+    return NOT_IN_LANGUAGE;
+  }
+
+  public static ParseResult budgetExceeded(String reason) {
+    return new ParseResult(Status.BUDGET_EXCEEDED, null, reason);
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public boolean isInLanguage() {
+    return status == Status.IN_LANGUAGE;
+  }
+
+  public boolean isBudgetExceeded() {
+    return status == Status.BUDGET_EXCEEDED;
+  }
+
+  // The parse tree when the word is in the language, null otherwise
+  public ParseTreeNode getTree() {
+    return tree;
+  }
+
+  // Which limit was exceeded, null unless the budget was
+  public String getReason() {
+    return reason;
+  }
+
+  public String toString() {
+    return status + (reason != null ? " (" + reason + ")" : "");
+  }
+}
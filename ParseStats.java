@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.EventType;
+
+// What one parse spent where, for the cfgparser.Parse JFR event and the ParserMetrics totals.
+//
+// A parser calls start as it begins, mark as each phase ends, so the time since the previous mark
+// goes to that phase, and finish once it has its answer. Between them the chart or search adds its
+// counts. While neither JFR records cfgparser.Parse nor ParserMetrics is enabled, start returns
+// OFF without allocating anything, and OFF's methods return at once, so an uninstrumented parse
+// pays one branch per call.
+// Cell counts may come from the pool threads filling a diagonal, the rest from the calling thread.
+public final class ParseStats {
+
+  public enum Phase { PREPARE, TERMINAL_FILL, BINARY_FILL, SEARCH, TREE }
+
+  // The stats of a parse nobody is watching
+  public static final ParseStats OFF = new ParseStats(null, 0, null, false);
+
+  // Whether a recording enables cfgparser.Parse, asked without making an event
+  private static final EventType PARSE_EVENT = EventType.getEventType(ParseEvent.class);
+
+  private final boolean on;
+  private final String engine;
+  private final int wordLength;
+  private final ParseEvent event;
+  private final boolean metrics;
+  private final long started;
+  private long last;
+  private final long[] phaseNanos = new long[Phase.values().length];
+  private final LongAdder cellsFilled = new LongAdder();
+  private final LongAdder nonEmptyCells = new LongAdder();
+  private final LongAdder ruleChecks = new LongAdder();
+  private final LongAdder ruleApplications = new LongAdder();
+
+  private ParseStats(String engine, int wordLength, ParseEvent event, boolean metrics) {
+    this.on = event != null;
+    this.engine = engine;
+    this.wordLength = wordLength;
+    this.event = event;
+    this.metrics = metrics;
+    this.started = on ? System.nanoTime() : 0;
+    this.last = started;
+  }
+
+  public static ParseStats start(String engine, int wordLength) {
+    boolean metrics = ParserMetrics.getShared().isEnabled();
+    if (!metrics && !PARSE_EVENT.isEnabled()) return OFF;
+    ParseEvent event = new ParseEvent();
+    event.begin();
+    return new ParseStats(engine, wordLength, event, metrics);
+  }
+
+  public boolean isOn() {
+    return on;
+  }
+
+  // The time since the previous mark, or since start, was spent in phase
+  public void mark(Phase phase) {
+    if (!on) return;
+    long now = System.nanoTime();
+    phaseNanos[phase.ordinal()] += now - last;
+    last = now;
+  }
+
+  // One chart cell filled after checks rules, applications of which matched
+  public void cellFilled(long checks, long applications, boolean nonEmpty) {
+    if (!on) return;
+    cellsFilled.increment();
+    if (nonEmpty) nonEmptyCells.increment();
+    ruleChecks.add(checks);
+    ruleApplications.add(applications);
+  }
+
+  // Rules tried and applied outside a chart, by a search
+  public void rulesChecked(long checks, long applications) {
+    if (!on) return;
+    ruleChecks.add(checks);
+    ruleApplications.add(applications);
+  }
+
+  // The parse is over, with the given answer
+  public void finish(ParseResult.Status status) {
+    if (!on) return;
+    long total = System.nanoTime() - started;
+    if (event.shouldCommit()) {
+      event.engine = engine;
+      event.wordLength = wordLength;
+      event.outcome = status.name();
+      event.prepareNanos = getPhaseNanos(Phase.PREPARE);
+      event.terminalFillNanos = getPhaseNanos(Phase.TERMINAL_FILL);
+      event.binaryFillNanos = getPhaseNanos(Phase.BINARY_FILL);
+      event.searchNanos = getPhaseNanos(Phase.SEARCH);
+      event.treeNanos = getPhaseNanos(Phase.TREE);
+      event.cellsFilled = getCellsFilled();
+      event.nonEmptyCells = getNonEmptyCells();
+      event.ruleChecks = getRuleChecks();
+      event.ruleApplications = getRuleApplications();
+      event.commit();
+    }
+    if (metrics) ParserMetrics.getShared().record(this, status, total);
+  }
+
+  public String getEngine() {
+    return engine;
+  }
+
+  public int getWordLength() {
+    return wordLength;
+  }
+
+  public long getPhaseNanos(Phase phase) {
+    return phaseNanos[phase.ordinal()];
+  }
+
+  public long getCellsFilled() {
+    return cellsFilled.sum();
+  }
+
+  public long getNonEmptyCells() {
+    return nonEmptyCells.sum();
+  }
+
+  public long getRuleChecks() {
+    return ruleChecks.sum();
+  }
+
+  public long getRuleApplications() {
+    return ruleApplications.sum();
+  }
+}
@@ -1,332 +1,437 @@
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
 
 import computation.contextfreegrammar.*;
 import computation.parser.*;
 import computation.parsetree.*;
 
-public class Parser implements IParser {
+// Stateless between calls: all per-grammar data comes from the (immutable) CompiledGrammar
+// and everything else lives on the stack, so one instance can be shared across threads
+public class Parser implements CompilingParser {
 
-  private static Map<Symbol, List<Word>> expansionsMap;
+  // The engine name in ParseStats, see ParseEvent and ParserMetrics
+  public static final String ENGINE = "Parser";
 
+  // The grammar converted to CNF when it is not in CNF already
+  public CompiledGrammar compile(ContextFreeGrammar cfg) {
+    return GrammarCache.getShared().compileCnf(cfg);
+  }
+
+  // Recognition only: any derivation of w is enough, the parse tree is never rebuilt from it
   public boolean isInLanguage(ContextFreeGrammar cfg, Word w) {
-    return generateParseTree(cfg, w) != null;
+
+    ParseStats stats = ParseStats.start(ENGINE, w.length());
+    CompiledGrammar grammar = compile(cfg);
+    stats.mark(ParseStats.Phase.PREPARE);
+
+    boolean accepted;
+    if (!grammar.isValidCnfInput(w)) {
+      accepted = false;
+    } else if (w.equals(Word.emptyWord)) {
+      accepted = true;
+    } else {
+      accepted = getComputedDerivation(grammar, w, ParseBudget.UNLIMITED.start(), stats) != null;
+    }
+
+    stats.finish(accepted ? ParseResult.Status.IN_LANGUAGE : ParseResult.Status.NOT_IN_LANGUAGE);
+    return accepted;
   }
 
   public ParseTreeNode generateParseTree(ContextFreeGrammar cfg, Word w) {
+    return parse(cfg, w, ParseBudget.UNLIMITED).getTree();
+  }
 
-    // Set static property expansionsMap:
-    // This groups all the expansions under each rule symbol
-    // which allows simple lookup via ".get(symbol)"
-    setExpansionMap(cfg);
-
-    if (!isValidInput(cfg, w)) return null;
+  // As generateParseTree, but the search may create at most budget.getMaxNodes() sentential forms,
+  // hold at most budget.getMaxBytes() bytes of them at once and try at most budget.getMaxSteps()
+  // expansions before it gives up with a budget exceeded result
+  public ParseResult parse(ContextFreeGrammar cfg, Word w, ParseBudget budget) {
+    ParseStats stats = ParseStats.start(ENGINE, w.length());
+    ParseResult result = parse(cfg, w, budget, stats);
+    stats.finish(result.getStatus());
+    return result;
+  }
 
-    if (w.equals(Word.emptyWord)) return ParseTreeNode.emptyParseTree(cfg.getStartVariable());
+  private ParseResult parse(ContextFreeGrammar cfg, Word w, ParseBudget budget, ParseStats stats) {
 
-    List<Node> computedDerivations = getComputedDerivations(cfg, w);
+    // Rule grouping and CNF conversion are done once per grammar, see GrammarCache
+    CompiledGrammar grammar = compile(cfg);
+    stats.mark(ParseStats.Phase.PREPARE);
 
-    if (computedDerivations == null || computedDerivations.size() == 0) return null;
+    if (!grammar.isValidCnfInput(w)) return ParseResult.notInLanguage();
 
-    // 1. Pick any given node in the list of all possible derivation paths
-    Node node = computedDerivations.get(0);
+    if (w.equals(Word.emptyWord)) return ParseResult.inLanguage(ChartTrees.emptyTree(grammar));
 
-    // 2. If length of word is 1, its pretty simple to work out tree...
-    if (w.length() == 1) {
-      return new ParseTreeNode(cfg.getStartVariable(), new ParseTreeNode(node.getExpansion().get(0)));
-    }
-    
-    // 3. Walk back up the tree from end to start, adding each node to a list
-    // this represents the derivation path
-    List<Node> derivationNodes = new ArrayList<Node>();
-    while(true) {
-      derivationNodes.add(node);
-      Node parent = node.getParent();
-      node = parent;
-      if (node.getParentSymbol() == null) break;
-    }   
-  
-    // 4. Recursively determine the children of the cfgs start variable
-    int i = 0;
-    ParseTreeNode[] firstChildren = new ParseTreeNode[2];
-    Iterator<Symbol> firstChildIterator = node.getWord().iterator();
-    while (firstChildIterator.hasNext()) {
-      Symbol currentSymbol = firstChildIterator.next();
-      Node nextChild = getLeftMostChild(currentSymbol, derivationNodes);
-      derivationNodes.remove(nextChild); // Remove the node so that its not picked up again by above method
-      ParseTreeNode[] childrenOfFirstChild = resolveChildArray(recurseChildren(nextChild, derivationNodes));
-      if (childrenOfFirstChild[0] != null) {
-        firstChildren[i++] = new ParseTreeNode(currentSymbol, childrenOfFirstChild);
-      } else {
-        firstChildren[i++] = new ParseTreeNode(currentSymbol, new ParseTreeNode(nextChild.getExpansion().get(0)));
-      }  
+    Derivation derivation;
+    try {
+      derivation = getComputedDerivation(grammar, w, budget.start(), stats);
+    } catch (ParseBudget.ExceededException e) {
+      return ParseResult.budgetExceeded(e.getMessage());
     }
 
-    // 5. Create the final top level parse tree node and return
-    ParseTreeNode result = new ParseTreeNode(cfg.getStartVariable(), firstChildren);
+    if (derivation == null) return ParseResult.notInLanguage();
 
-    return result;
+    ParseTreeNode tree = toParseTree(grammar, w, derivation);
+    stats.mark(ParseStats.Phase.TREE);
+    return ParseResult.inLanguage(tree);
   }
 
-  private boolean isValidInput(ContextFreeGrammar cfg, Word w) {
-    
-    if (w.equals(Word.emptyWord)) {
-      return expansionsMap
-        .get(cfg.getStartVariable())
-        .stream()
-        .anyMatch(e -> e.equals(w));
-    }
+  // Every parse tree of w, one per leftmost derivation, each searched for only when asked for.
+  // Stopping after the first costs no more than generateParseTree. For a grammar that is not in
+  // CNF these are the trees of its conversion, restored: each tree as given at most once per
+  // tree of the conversion, and its subtrees of the empty word always the same
+  public Iterator<ParseTreeNode> generateParseTrees(ContextFreeGrammar cfg, Word w) {
+
+    CompiledGrammar grammar = compile(cfg);
 
-    if (w.count(new Terminal(' ')) == w.length()) return false;
+    if (!grammar.isValidCnfInput(w)) return Collections.emptyIterator();
 
-    return cfg.isInChomskyNormalForm();
+    if (w.equals(Word.emptyWord)) return Collections.singletonList(ChartTrees.emptyTree(grammar)).iterator();
+
+    // Without the memo of failed forms: a form can lead to more than one derivation, and each counts
+    final Derivations derivations = new Derivations(grammar, w, ParseBudget.UNLIMITED.start(), false);
+    return new Iterator<ParseTreeNode>() {
+      public boolean hasNext() {
+        return derivations.hasNext();
+      }
+
+      public ParseTreeNode next() {
+        return toParseTree(grammar, w, derivations.next());
+      }
+    };
   }
 
-  private void setExpansionMap(ContextFreeGrammar cfg) {
-    expansionsMap = cfg
-      .getRules()
-      .stream()
-      .collect(Collectors.groupingBy(Rule::getVariable, 
-               Collectors.mapping(Rule::getExpansion, Collectors.toList())));
+  // A leftmost derivation expands the nodes of its parse tree in preorder: each node, then its
+  // left subtree, then its right one. Walking the steps back from the last one therefore meets
+  // both subtrees of a node, right then left, before the node itself
+  private ParseTreeNode toParseTree(CompiledGrammar grammar, Word w, Derivation derivation) {
+    CnfGrammar conversion = grammar.getConversion();
+    if (conversion == null) return toParseTree(grammar, w, derivation, ChartTrees.NODES);
+    return toParseTree(grammar, w, derivation, conversion).getTree();
+  }
+
+  private <T> T toParseTree(CompiledGrammar grammar, Word w, Derivation derivation, ChartTrees.NodeFactory<T> nodes) {
+
+    Deque<T> built = new ArrayDeque<T>();
+    for (Derivation step = derivation; step.parent != null; step = step.parent) {
+      Variable variable = grammar.getVariable(step.variable);
+      if (step.rule < 0) {
+        built.push(nodes.leaf(variable, (Terminal)w.get(step.matched - 1)));
+      } else {
+        T left = built.pop();
+        T right = built.pop();
+        built.push(nodes.node(variable, grammar.getVariable(grammar.getBinaryLeft(step.rule)),
+          grammar.getVariable(grammar.getBinaryRight(step.rule)), left, right));
+      }
+    }
+
+    return built.pop();
   }
 
   // region Algorithm #1
 
-  private List<Node> getComputedDerivations(ContextFreeGrammar cfg, Word w) {
+  private Derivation getComputedDerivation(CompiledGrammar grammar, Word w, ParseBudget.Meter meter, ParseStats stats) {
 
     // On an input w for Grammar G
     // List all derivations with 2n - 1 steps where n = |w|, unless n = 0, then list
     // all derivatins with 1 step
     // If any of these derivations generate w, then accept. Otherwise reject
 
-    // Algorithm #1
-    // Iterate through each set of expansions, computing all possible derivations
+    // Algorithm #1, searched depth first and pruned
+    // Every derivation can be reordered to always expand the leftmost variable, so only those
+    // are listed. Their sentential forms are the first p symbols of w followed by variables only:
     // i = 0, [ S ]
-    // i = 1, [ EG | TH | NC | 1 | 0 | x ]
-    // i = 2, [ EEG, THG, NCG, 1G, 0G, xG, EPT, TTH, NCH, 1H, 0H, 0x ... etc ]
-
-    final int startingDepth = 0;
-    final int n = w.length();
-    final int derivationDepth = 2 * n - 1;
-
-    Symbol startVariable = cfg.getStartVariable();
-    final Node root = new Node(new Word(startVariable), startingDepth);
-
-    // If you can produce word from starting variable, return array with single node
-    if (n == 1) {
-      Word matchingWordFromStartVariable = expansionsMap
-        .get(startVariable)
-        .stream()
-        .filter(startingExpansion -> startingExpansion.isTerminal() && startingExpansion.equals(w))
-        .findFirst()
-        .orElse(null);
-
-      return matchingWordFromStartVariable.equals(null)
-        ? null
-        : new ArrayList<>(Arrays.asList(
-            new Node(root, matchingWordFromStartVariable, startingDepth + 1) {{
-              setParentSymbol(startVariable);
-              setReplacementIndex(0);
-              setExpansion(matchingWordFromStartVariable);
-            }}
-        ));
-    }
-    
+    // i = 1, [ EG | TH | NC | 1 ] for w = 1+0 (0 and x don't match w)
+    // i = 2, [ EGG, THG, NCG, 1G ] ... and so on
+    // A form is dropped as soon as it cannot lead to w:
+    // - it expands A -> a where a is not the next symbol of w
+    // - its variables, even deriving their shortest words, would make it longer than w
+    // - its variables must between them derive more of some terminal than w has left
+    // - the same form, reached another way, was already searched and led nowhere. On an ambiguous
+    //   grammar many orders of expansion give the same form, and without this each of them would
+    //   search it again, exponentially many times on a word that is rejected
+    // The search stops at the first derivation of w, see Derivations, or once it is over budget
+
+    Derivations derivations = new Derivations(grammar, w, meter, true);
+    stats.mark(ParseStats.Phase.PREPARE);
     try {
-      List<Node> matchingNodes = expansionsMap
-        .get(startVariable)
-        .stream()
-        .map(startingExpansion -> recurseDerivations(root, startingExpansion, startingDepth, derivationDepth)) // Produce all possible derivations to 2n - 1 depth
-        .map(childDerivation -> recurseMatchingChildren(childDerivation, w, derivationDepth)) // Find children that match
-        .flatMap(HashSet::stream) // Flatten from map to single list of nodes
-        .collect(Collectors.toList()); // And collect as list
-
-      return matchingNodes;
-
-    } catch (OutOfMemoryError e) {
-      System.out.println("Out of Memory exception: " + e.getMessage());
+      return derivations.hasNext() ? derivations.next() : null;
+    } finally {
+      stats.mark(ParseStats.Phase.SEARCH);
+      stats.rulesChecked(derivations.checks, derivations.applications);
     }
-
-    return null;
   }
 
-  private Node recurseDerivations(Node parent, Word word, int depth, int maxDepth) {
-    Node node = new Node(parent, word, ++depth);
-    if (depth == maxDepth || word.isTerminal()) {
-      return node;
-    }
-
-    int replaceIndex = 0;
-    Iterator<Symbol> symbols = word.iterator();
-    while (symbols.hasNext()) {
-      Symbol currentSymbol = symbols.next();
-      if (currentSymbol.isTerminal()) {
-        replaceIndex++;
-        continue;
+  // The leftmost derivations of w, found one at a time, depth first, only when asked for.
+  // Only the current path is held: each form on it keeps which expansion of its leftmost
+  // variable to try next, so memory stays at the 2n - 1 forms of one derivation.
+  // Every form created is charged to the meter as a node, with its estimated size in bytes
+  // until it is dropped, and every expansion tried as a step.
+  // With memo set, a form whose expansions are all done without a derivation is remembered as
+  // failed, and is not searched again however else it is reached. Only for a search that stops
+  // at the first derivation: a form that led to one may lead to others. The memo is a table of
+  // slots indexed by the form's hash, growing to MEMO_SLOTS at most, a new form overwriting the
+  // one in its slot: it stays that size however long the search, and forgetting a form only
+  // costs searching it again. A slot holds the form's own Variables list rather than a copy, so
+  // adding and looking up a form allocates nothing and compares lists only down to a shared tail.
+  // The slots and the cells they keep from being dropped are charged to the meter.
+  // Forms only recur on an ambiguous grammar, and elsewhere the memo is pure cost, so it has to
+  // keep earning its place: after each MEMO_SLOTS forms recorded with fewer than one hit in
+  // MEMO_HIT_RATIO, it is left alone for the next failed forms, as many as last time doubled up
+  // to MEMO_MAX_PAUSE. A search that starts to revisit forms gets it back after one pause at most
+  private class Derivations implements Iterator<Derivation> {
+    private final CompiledGrammar grammar;
+    private final ParseBudget.Meter meter;
+    private final int n;
+    private final int[] encoded;
+    private final int[][] remaining; // remaining[p][t]: how often terminal t occurs in w from symbol p on
+    private final long variablesBytes; // estimated size of one Variables cell
+    private final Deque<Derivation> path = new ArrayDeque<Derivation>();
+    private final boolean memo;
+    private int[] failedHash; // the memo, null until the first failed form
+    private int[] failedMatched;
+    private Variables[] failedVariables; // null in an empty slot
+    private int failedCount; // slots in use
+    private int windowAdded; // forms recorded since the memo last earned its place, and hits among them
+    private int windowHits;
+    private long paused; // failed forms left to pass before the memo is used again
+    private long pauseLength = MEMO_SLOTS;
+    private Derivation found;
+    private long checks; // expansions tried
+    private long applications; // expansions that kept w in reach
+
+    public Derivations(CompiledGrammar grammar, Word w, ParseBudget.Meter meter, boolean memo) {
+      this.grammar = grammar;
+      this.meter = meter;
+      this.n = w.length();
+      this.variablesBytes = VARIABLES_BYTES + ARRAY_BYTES + 4L * grammar.getTerminalCount();
+      this.memo = memo;
+      meter.addNodes(0, ARRAY_BYTES + 4L * n + (n + 1) * (ARRAY_BYTES + 4L * grammar.getTerminalCount()));
+      this.encoded = grammar.encode(w);
+      this.remaining = new int[n + 1][grammar.getTerminalCount()];
+      for (int p = n - 1; p >= 0; p--) {
+        remaining[p] = remaining[p + 1].clone();
+        if (encoded[p] >= 0) remaining[p][encoded[p]]++;
       }
 
-      List<Word> currentExpansions = expansionsMap.get(currentSymbol);
-      for (Word expansion : currentExpansions) {
-        Symbol parentSymbol = word.get(replaceIndex);
-        Word replaced = word.replace(replaceIndex, expansion);
-        Node childNode = recurseDerivations(node, replaced, depth, maxDepth);
-        childNode.setParentSymbol(parentSymbol);
-        childNode.setReplacementIndex(replaceIndex);
-        childNode.setExpansion(expansion);
-        node.addChild(childNode);
-      }
-
-      replaceIndex++;
+      Derivation start = new Derivation(null, -1, -1, 0, new Variables(grammar, grammar.getStartVariable(), null));
+      meter.addNodes(1, bytes(start));
+      if (canReach(start)) path.push(start);
     }
 
-    return node;
-  }
-
-  private HashSet<Node> recurseMatchingChildren(Node node, Word wordToMatch, int derivationDepth) {
-    HashSet<Node> matchingChildren = new HashSet<Node>();
-
-    Word word = node.getWord();
-    if (word.equals(wordToMatch) && node.getDepth() == derivationDepth) {
-      matchingChildren.add(node);
-      return matchingChildren;
+    public boolean hasNext() {
+      if (found == null) found = advance();
+      return found != null;
     }
 
-    for (Node child : node.getChildren()) {
-      matchingChildren.addAll(recurseMatchingChildren(child, wordToMatch, derivationDepth));
+    public Derivation next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      Derivation derivation = found;
+      found = null;
+      return derivation;
     }
 
-    return matchingChildren;
-  }
-
-  // region generateParseTrees
-  
-  private Node getLeftMostChild(Symbol parentSymbol, List<Node> derivationNodes) {
-
-    List<Node> childNodes = derivationNodes
-      .stream()
-      .filter(n -> n.getParentSymbol().equals(parentSymbol))
-      .collect(Collectors.toList());
-    
-    // Replacement index represents the index of where the substitution occurs between parent and child
-    // Depth refers to the number of recursions made to compute the derivation
-    // The children of the child are sorted here by both these properties to always return the first
-    // occurrence of a given symbol. We do this as the outer algorithm is working from top level down to 
-    // bottom level - and there can of course be multiple children within the derivation tree with the same
-    // symbol
-
-    Collections.sort(childNodes, new Comparator<Node>(){
-      public int compare(Node n1, Node n2) {
-        Integer a = n1.getReplacementIndex() + n1.getDepth();
-        Integer b = n2.getReplacementIndex() + n2.getDepth();
-        return a.compareTo(b);
+    // Moves along the path to the next complete derivation of w, null when there are no more
+    private Derivation advance() {
+      while (!path.isEmpty()) {
+        Derivation form = path.peek();
+        Derivation next = form.variables == null ? null : expandNext(form);
+        if (next == null) {
+          path.pop(); // All its expansions are done, or it is complete and was returned already
+          meter.releaseBytes(bytes(form));
+          if (memo && form.variables != null) {
+            if (paused > 0) paused--;
+            else addFailed(form);
+          }
+          continue;
+        }
+        path.push(next);
+        if (next.variables == null) return next;
       }
-    });
-
-    return childNodes.get(0);
-  }
-
-  private ParseTreeNode[] recurseChildren(Node parent, List<Node> derivationNodes) {
-
-    ParseTreeNode[] children = new ParseTreeNode[2];
-    // Base condition is to recurse until no derivation nodes remain
-    // i.e. the parent is a terminal
-    if (derivationNodes.size() == 0) return children;
-    
-    int i = 0;
-    Iterator<Symbol> symbolIterator = parent.getExpansion().iterator();
-    while (symbolIterator.hasNext()) {
-      Symbol currentSymbol = symbolIterator.next();
-      if (currentSymbol.isTerminal()) {
-        children[i++] = new ParseTreeNode(currentSymbol);
-        continue;
-      }
-      
-      Node nextChild = getLeftMostChild(currentSymbol, derivationNodes);
-      derivationNodes.remove(nextChild);
-      ParseTreeNode[] childrenOfChild = resolveChildArray(recurseChildren(nextChild, derivationNodes));
-      if (childrenOfChild[0] != null) { // child of parent has children
-        children[i++] = new ParseTreeNode(currentSymbol, childrenOfChild);
-      } else { // child of parent has no children
-        children[i++] = new ParseTreeNode(currentSymbol, new ParseTreeNode(nextChild.getExpansion().get(0)));
-      }      
-    }
-
-    return children;
-  }
-
-  private ParseTreeNode[] resolveChildArray(ParseTreeNode[] childArray) {
-    return childArray[1] == null ? new ParseTreeNode[] { childArray[0] } : childArray;
-  }
-
-  private class Node {
-    private final Node parent;
-    private final Word word;
-    private final Integer depth;
-    private final HashSet<Node> children;
-    private Symbol parentSymbol;
-    private Integer replacementIndex;
-    private Word expansion;
-
-    public Node(Word w, int depth) {
-      this(null, w, depth);
+      return null;
     }
 
-    public Node(Node parent, Word w, int depth) {
-      this.parent = parent;
-      this.word = w;
-      this.depth = depth;
-      this.children = new HashSet<Node>();
+    // The next expansion of the leftmost variable of form that keeps w in reach, A -> a first
+    private Derivation expandNext(Derivation form) {
+      int a = form.variables.variable;
+      int[] rules = grammar.getBinaryRules(a);
+      while (form.tried <= rules.length) {
+        int option = form.tried++;
+        checks++;
+        meter.addSteps(1);
+        Derivation next;
+        if (option == 0) {
+          int p = form.matched;
+          if (p >= n || encoded[p] < 0 || !Bits.contains(grammar.getTerminalRules(encoded[p]), a)) continue;
+          next = new Derivation(form, a, -1, p + 1, form.variables.next);
+        } else {
+          int rule = rules[option - 1];
+          Variables expanded = new Variables(grammar, grammar.getBinaryLeft(rule),
+            new Variables(grammar, grammar.getBinaryRight(rule), form.variables.next));
+          next = new Derivation(form, a, rule, form.matched, expanded);
+        }
+        meter.addNodes(1, bytes(next));
+        if (canReach(next)) {
+          applications++;
+          return next;
+        }
+        meter.releaseBytes(bytes(next));
+      }
+      return null;
     }
 
-    public Node getParent() {
-      return this.parent;
+    // The memory a form adds to what its parent holds: itself and the variables it created
+    private long bytes(Derivation form) {
+      if (form.parent == null) return DERIVATION_BYTES + variablesBytes;
+      return form.rule < 0 ? DERIVATION_BYTES : DERIVATION_BYTES + 2 * variablesBytes;
     }
 
-    public Word getWord() {
-      return this.word;
+    // False when the form can no longer derive w
+    private boolean canReach(Derivation form) {
+      Variables variables = form.variables;
+      if (variables == null) return form.matched == n;
+      if ((long)form.matched + variables.minLength > n) return false;
+      for (int t = 0; t < variables.minCounts.length; t++) {
+        if (variables.minCounts[t] > remaining[form.matched][t]) return false;
+      }
+      return !memo || paused > 0 || !isFailed(form);
     }
 
-    public Integer getDepth() {
-      return this.depth;
+    private boolean isFailed(Derivation form) {
+      if (failedHash == null) return false;
+      int hash = hash(form);
+      int slot = hash & (failedHash.length - 1);
+      if (failedVariables[slot] == null || failedHash[slot] != hash || failedMatched[slot] != form.matched ||
+          !Variables.same(failedVariables[slot], form.variables)) return false;
+      windowHits++;
+      return true;
     }
 
-    public HashSet<Node> getChildren() {
-      return this.children;
-    }
-    
-    public void setParentSymbol(Symbol pParentSymbol) {
-      this.parentSymbol = pParentSymbol;
+    private void addFailed(Derivation form) {
+      if (failedHash == null) resizeFailed(MEMO_SLOTS_INITIAL);
+      else if (failedCount >= failedHash.length / 2 && failedHash.length < MEMO_SLOTS) resizeFailed(2 * failedHash.length);
+      int hash = hash(form);
+      int slot = hash & (failedHash.length - 1);
+      if (failedVariables[slot] == null) {
+        meter.addNodes(0, 2 * variablesBytes);
+        failedCount++;
+      }
+      failedHash[slot] = hash;
+      failedMatched[slot] = form.matched;
+      failedVariables[slot] = form.variables;
+
+      if (++windowAdded < MEMO_SLOTS) return;
+      if ((long)windowHits * MEMO_HIT_RATIO < windowAdded) {
+        paused = pauseLength;
+        pauseLength = Math.min(2 * pauseLength, MEMO_MAX_PAUSE);
+      } else {
+        pauseLength = MEMO_SLOTS;
+      }
+      windowAdded = 0;
+      windowHits = 0;
     }
 
-    public Symbol getParentSymbol() {
-      return this.parentSymbol;
+    // Moves the memo to a table of the given number of slots, charging the meter for the new one
+    // and releasing the old one, and the forms lost where two meet in one slot
+    private void resizeFailed(int slots) {
+      meter.addNodes(0, 3 * ARRAY_BYTES + 12L * slots);
+      int[] oldHash = failedHash, oldMatched = failedMatched;
+      Variables[] oldVariables = failedVariables;
+      failedHash = new int[slots];
+      failedMatched = new int[slots];
+      failedVariables = new Variables[slots];
+      if (oldHash == null) return;
+
+      meter.releaseBytes(3 * ARRAY_BYTES + 12L * oldHash.length);
+      int kept = 0;
+      for (int s = 0; s < oldHash.length; s++) {
+        if (oldVariables[s] == null) continue;
+        int slot = oldHash[s] & (slots - 1);
+        if (failedVariables[slot] == null) kept++;
+        failedHash[slot] = oldHash[s];
+        failedMatched[slot] = oldMatched[s];
+        failedVariables[slot] = oldVariables[s];
+      }
+      meter.releaseBytes((failedCount - kept) * 2 * variablesBytes);
+      failedCount = kept;
     }
 
-    public void setReplacementIndex(int pReplacementIndex) {
-      this.replacementIndex = pReplacementIndex;
+    // The form's matched prefix length and variables, spread as murmur3 finishes a hash
+    private int hash(Derivation form) {
+      int h = form.variables.hash ^ form.matched * 0x85ebca6b;
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      return h ^ (h >>> 16);
     }
+  }
 
-    public Integer getReplacementIndex() {
-      return this.replacementIndex;
+  // Rough object sizes on a 64-bit JVM with compressed references, for the byte budget
+  private static final long DERIVATION_BYTES = 40;
+  private static final long VARIABLES_BYTES = 32;
+  private static final long ARRAY_BYTES = 16;
+
+  // Slots of the memo of failed forms in Derivations, to start with and at most
+  private static final int MEMO_SLOTS_INITIAL = 1 << 6;
+  private static final int MEMO_SLOTS = 1 << 14;
+  private static final int MEMO_HIT_RATIO = 64;
+  private static final long MEMO_MAX_PAUSE = 64L * MEMO_SLOTS;
+
+  // One sentential form and the step that reached it: the first matched symbols of w,
+  // then the variables still to expand. Following parent back gives the whole derivation
+  private class Derivation {
+    private final Derivation parent;
+    private final int variable; // the variable expanded to reach this form, -1 for the start
+    private final int rule; // the binary rule applied to it, or -1 for variable -> w[matched - 1]
+    private final int matched;
+    private final Variables variables;
+    private int tried; // expansions of the leftmost variable tried so far, see Derivations
+
+    public Derivation(Derivation parent, int variable, int rule, int matched, Variables variables) {
+      this.parent = parent;
+      this.variable = variable;
+      this.rule = rule;
+      this.matched = matched;
+      this.variables = variables;
     }
+  }
 
-    public void setExpansion(Word pEexpansion) {
-      this.expansion = pEexpansion;
+  // The variables of a sentential form, leftmost first, as an immutable list so that forms share
+  // their common tails. Each cell also sums the lower bounds of itself and everything after it
+  private static class Variables {
+    private final int variable;
+    private final Variables next;
+    private final int minLength; // Integer.MAX_VALUE once some variable derives no word
+    private final int[] minCounts; // per terminal id
+    private final int hash; // of the variables from this one on, see Derivations
+
+    public Variables(CompiledGrammar grammar, int variable, Variables next) {
+      this.variable = variable;
+      this.next = next;
+      this.hash = (next == null ? 1 : next.hash) * 0x9e3779b1 + variable;
+      int terminals = grammar.getTerminalCount();
+      this.minLength = add(grammar.getMinLength(variable), next == null ? 0 : next.minLength);
+      this.minCounts = new int[terminals];
+      for (int t = 0; t < terminals; t++) {
+        minCounts[t] = add(grammar.getMinTerminalCount(variable, t), next == null ? 0 : next.minCounts[t]);
+      }
     }
 
-    public Word getExpansion() {
-      return this.expansion;
+    // Whether two lists hold the same variables, walking them only until they share a tail
+    private static boolean same(Variables a, Variables b) {
+      while (a != b) {
+        if (a == null || b == null || a.variable != b.variable || a.hash != b.hash) return false;
+        a = a.next;
+        b = b.next;
+      }
+      return true;
     }
 
-    public void addChild(Node childNode) {
-      this.children.add(childNode);
+    private static int add(int a, int b) {
+      return (int)Math.min(Integer.MAX_VALUE, (long)a + b);
     }
   }
-}
\ No newline at end of file
+}
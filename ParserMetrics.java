@@ -0,0 +1,146 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Totals over every instrumented parse in the JVM, published over JMX as cfgparser:type=ParserMetrics.
+// Off unless the JVM is started with -Dcfgparser.metrics=true or something calls setEnabled(true),
+// e.g. jconsole. A snapshot is read field by field while parses go on, so the figures of one read
+// can be a parse apart from each other.
+public class ParserMetrics implements ParserMetricsMXBean {
+
+  public static final String OBJECT_NAME = "cfgparser:type=ParserMetrics";
+
+  private static final ParserMetrics shared = register(new ParserMetrics(Boolean.getBoolean("cfgparser.metrics")));
+
+  private volatile boolean enabled;
+
+  private final LongAdder parses = new LongAdder();
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder budgetExceeded = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+  private final LongAdder[] phaseNanos = new LongAdder[ParseStats.Phase.values().length];
+  private final LongAdder cellsFilled = new LongAdder();
+  private final LongAdder nonEmptyCells = new LongAdder();
+  private final LongAdder ruleChecks = new LongAdder();
+  private final LongAdder ruleApplications = new LongAdder();
+
+  public ParserMetrics(boolean enabled) {
+    this.enabled = enabled;
+    for (int p = 0; p < phaseNanos.length; p++) phaseNanos[p] = new LongAdder();
+  }
+
+  public static ParserMetrics getShared() {
+    return shared;
+  }
+
+  // Another copy of these classes may have registered the name first, then that one is published.
+  // A library has no business printing, so a failure only goes to System.Logger at DEBUG
+  private static ParserMetrics register(ParserMetrics metrics) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+    } catch (JMException | SecurityException e) {
+      System.getLogger(ParserMetrics.class.getName()).log(System.Logger.Level.DEBUG,
+        "Parser metrics not registered over JMX: " + e.getMessage());
+    }
+    return metrics;
+  }
+
+  // Adds a finished parse that took nanos in all
+  void record(ParseStats stats, ParseResult.Status status, long nanos) {
+    parses.increment();
+    switch (status) {
+      case IN_LANGUAGE: accepted.increment(); break;
+      case NOT_IN_LANGUAGE: rejected.increment(); break;
+      default: budgetExceeded.increment();
+    }
+    totalNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+    for (ParseStats.Phase phase : ParseStats.Phase.values()) {
+      phaseNanos[phase.ordinal()].add(stats.getPhaseNanos(phase));
+    }
+    cellsFilled.add(stats.getCellsFilled());
+    nonEmptyCells.add(stats.getNonEmptyCells());
+    ruleChecks.add(stats.getRuleChecks());
+    ruleApplications.add(stats.getRuleApplications());
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public void reset() {
+    for (LongAdder adder : new LongAdder[] { parses, accepted, rejected, budgetExceeded, totalNanos,
+      cellsFilled, nonEmptyCells, ruleChecks, ruleApplications }) adder.reset();
+    for (LongAdder adder : phaseNanos) adder.reset();
+    maxNanos.reset();
+  }
+
+  public long getParseCount() {
+    return parses.sum();
+  }
+
+  public long getAcceptedCount() {
+    return accepted.sum();
+  }
+
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+
+  public long getBudgetExceededCount() {
+    return budgetExceeded.sum();
+  }
+
+  public long getTotalNanos() {
+    return totalNanos.sum();
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  public long getPrepareNanos() {
+    return phaseNanos[ParseStats.Phase.PREPARE.ordinal()].sum();
+  }
+
+  public long getTerminalFillNanos() {
+    return phaseNanos[ParseStats.Phase.TERMINAL_FILL.ordinal()].sum();
+  }
+
+  public long getBinaryFillNanos() {
+    return phaseNanos[ParseStats.Phase.BINARY_FILL.ordinal()].sum();
+  }
+
+  public long getSearchNanos() {
+    return phaseNanos[ParseStats.Phase.SEARCH.ordinal()].sum();
+  }
+
+  public long getTreeNanos() {
+    return phaseNanos[ParseStats.Phase.TREE.ordinal()].sum();
+  }
+
+  public long getCellsFilled() {
+    return cellsFilled.sum();
+  }
+
+  public long getNonEmptyCells() {
+    return nonEmptyCells.sum();
+  }
+
+  public long getRuleChecks() {
+    return ruleChecks.sum();
+  }
+
+  public long getRuleApplications() {
+    return ruleApplications.sum();
+  }
+}
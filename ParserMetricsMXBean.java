@@ -0,0 +1,40 @@
+// The JMX view of ParserMetrics, registered as cfgparser:type=ParserMetrics.
+// Times are in nanoseconds and every figure is a total since the last reset
+public interface ParserMetricsMXBean {
+
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  void reset();
+
+  long getParseCount();
+
+  long getAcceptedCount();
+
+  long getRejectedCount();
+
+  long getBudgetExceededCount();
+
+  long getTotalNanos();
+
+  long getMaxNanos();
+
+  long getPrepareNanos();
+
+  long getTerminalFillNanos();
+
+  long getBinaryFillNanos();
+
+  long getSearchNanos();
+
+  long getTreeNanos();
+
+  long getCellsFilled();
+
+  long getNonEmptyCells();
+
+  long getRuleChecks();
+
+  long getRuleApplications();
+}
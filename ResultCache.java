@@ -0,0 +1,336 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import computation.contextfreegrammar.*;
+import computation.parsetree.*;
+
+// Bounded cache of parse results for words seen before, for traffic that repeats the same few
+// words (see CachingParser). An entry is keyed by the engine, the grammar and the word's symbols,
+// and holds whether the word is in the language and, when the cache keeps trees, its parse tree.
+// Keys hash the grammar by its fingerprint (see CompiledGrammar.getFingerprint), so the same
+// grammar compiled again or read by GrammarFile.load finds its entries, and tell grammars apart
+// by their tables (see CompiledGrammar.hasSameTables), so two whose fingerprints collide do not
+// share results. A key holds its grammar, which stays in memory while it has entries.
+//
+// The bound is on bytes: each entry is charged an estimate of what it holds, its key and word,
+// and about three nodes per symbol for a tree, and entries are evicted to stay under it.
+// The cache is split into SEGMENTS by key hash, each with its own lock and a share of the
+// bytes, so threads only wait for each other on the same segment. Within a segment:
+// - LRU: the least recently used entry goes first
+// - TINY_LFU: new entries go to a window LRU of 1% of the bytes. An entry leaving the window
+//   only enters the rest if it has been asked for more often than the entries it would evict
+//   there, counted by a small sketch (see FrequencySketch) that halves its counts as it fills,
+//   so a burst of words seen once cannot push out the words asked for all day
+// Trees are shared between every caller that gets them from the cache: don't change them.
+public class ResultCache {
+
+  public enum Eviction { LRU, TINY_LFU }
+
+  public static final int SEGMENTS = 16;
+
+  // Estimates in bytes: an entry with its key and map node, each symbol of its word, each tree node
+  private static final long ENTRY_BYTES = 128;
+  private static final long SYMBOL_BYTES = 2;
+  private static final long NODE_BYTES = 48;
+
+  private final long maxBytes;
+  private final Eviction eviction;
+  private final boolean keepTrees;
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public ResultCache(long maxBytes, Eviction eviction, boolean keepTrees) {
+    if (maxBytes < 1) throw new IllegalArgumentException("Cache size must be at least 1 byte");
+    this.maxBytes = maxBytes;
+    this.eviction = eviction;
+    this.keepTrees = keepTrees;
+    for (int s = 0; s < SEGMENTS; s++) segments[s] = new Segment(maxBytes / SEGMENTS);
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public Eviction getEviction() {
+    return eviction;
+  }
+
+  public boolean isKeepingTrees() {
+    return keepTrees;
+  }
+
+  // The key of w for a grammar and engine, null for a word the cache does not hold: one with
+  // a symbol that is not a terminal
+  public Key key(String engine, CompiledGrammar grammar, Word w) {
+    char[] symbols = new char[w.length()];
+    for (int i = 0; i < symbols.length; i++) {
+      Symbol symbol = w.get(i);
+      if (!symbol.isTerminal()) return null;
+      symbols[i] = symbol.toString().charAt(0);
+    }
+    return new Key(engine, grammar, new String(symbols));
+  }
+
+  // The entry for key, null on a miss. Counts a hit or a miss
+  public Entry get(Key key) {
+    return get(key, false);
+  }
+
+  // The same for a caller that needs the parse tree: an entry of a word in the language
+  // without its tree is returned but counted as a miss, as the word has to be parsed again
+  public Entry get(Key key, boolean needTree) {
+    Entry entry = segment(key).get(key);
+    if (entry == null || needTree && entry.accepted && entry.tree == null) misses.increment();
+    else hits.increment();
+    return entry;
+  }
+
+  // Stores the result for key, dropping the tree unless the cache keeps trees. An entry too big
+  // for its segment is not stored
+  public void put(Key key, boolean accepted, ParseTreeNode tree) {
+    Entry entry = new Entry(accepted, keepTrees ? tree : null, key.word.length());
+    segment(key).put(key, entry);
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  // Entries evicted to make room, and entries TINY_LFU refused to admit
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) size += segment.size();
+    return size;
+  }
+
+  // The estimated bytes held, never above getMaxBytes()
+  public long getBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) bytes += segment.bytes();
+    return bytes;
+  }
+
+  // Drops every entry, keeping the counts of hits, misses and evictions
+  public void clear() {
+    for (Segment segment : segments) segment.clear();
+  }
+
+  private Segment segment(Key key) {
+    return segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  public static final class Key {
+    private final String engine;
+    private final CompiledGrammar grammar;
+    private final long fingerprint;
+    private final String word;
+    private final int hash;
+
+    private Key(String engine, CompiledGrammar grammar, String word) {
+      this.engine = engine;
+      this.grammar = grammar;
+      this.fingerprint = grammar.getFingerprint();
+      this.word = word;
+      this.hash = (31 * engine.hashCode() + Long.hashCode(fingerprint)) * 31 + word.hashCode();
+    }
+
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+      Key key = (Key)other;
+      return key.hash == hash && key.fingerprint == fingerprint && key.word.equals(word) && key.engine.equals(engine) &&
+        key.grammar.hasSameTables(grammar);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  public static final class Entry {
+    private final boolean accepted;
+    private final ParseTreeNode tree;
+    private final long bytes;
+
+    private Entry(boolean accepted, ParseTreeNode tree, int length) {
+      this.accepted = accepted;
+      this.tree = tree;
+      this.bytes = ENTRY_BYTES + SYMBOL_BYTES * length + (tree == null ? 0 : NODE_BYTES * (3L * length + 2));
+    }
+
+    public boolean isAccepted() {
+      return accepted;
+    }
+
+    // The parse tree, null when the word is not in the language or the tree was not kept
+    public ParseTreeNode getTree() {
+      return tree;
+    }
+  }
+
+  // One lock's share of the entries. With LRU only main is used
+  private final class Segment {
+    private final long capacity;
+    private final long windowCapacity;
+    private final LinkedHashMap<Key, Entry> window = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> main = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long windowBytes;
+    private long mainBytes;
+
+    Segment(long capacity) {
+      this.capacity = capacity;
+      this.windowCapacity = eviction == Eviction.TINY_LFU ? capacity / 100 : 0;
+      this.sketch = eviction == Eviction.TINY_LFU ? new FrequencySketch(capacity / ENTRY_BYTES) : null;
+    }
+
+    synchronized Entry get(Key key) {
+      if (sketch != null) sketch.increment(key.hash);
+      Entry entry = window.get(key);
+      return entry != null ? entry : main.get(key);
+    }
+
+    synchronized void put(Key key, Entry entry) {
+      if (entry.bytes > capacity) return;
+      remove(key);
+      if (sketch == null) {
+        main.put(key, entry);
+        mainBytes += entry.bytes;
+        while (mainBytes > capacity) evictEldest(main);
+        return;
+      }
+
+      // Into the window, then whatever no longer fits there asks to be let into main
+      window.put(key, entry);
+      windowBytes += entry.bytes;
+      while (windowBytes > windowCapacity && !window.isEmpty()) {
+        Iterator<Map.Entry<Key, Entry>> eldest = window.entrySet().iterator();
+        Map.Entry<Key, Entry> candidate = eldest.next();
+        eldest.remove();
+        windowBytes -= candidate.getValue().bytes;
+        admit(candidate.getKey(), candidate.getValue());
+      }
+    }
+
+    // Lets the candidate into main if it was asked for more often than every entry it pushes out,
+    // those being the least recently used ones that free enough bytes
+    private void admit(Key key, Entry entry) {
+      long mainCapacity = capacity - windowCapacity;
+      long needed = mainBytes + entry.bytes - mainCapacity;
+      int frequency = sketch.frequency(key.hash);
+      int victims = 0;
+      for (Iterator<Map.Entry<Key, Entry>> it = main.entrySet().iterator(); needed > 0; victims++) {
+        if (!it.hasNext()) break;
+        Map.Entry<Key, Entry> victim = it.next();
+        if (sketch.frequency(victim.getKey().hash) >= frequency) {
+          evictions.increment();
+          return;
+        }
+        needed -= victim.getValue().bytes;
+      }
+      if (needed > 0) {
+        evictions.increment();
+        return;
+      }
+      for (int v = 0; v < victims; v++) evictEldest(main);
+      main.put(key, entry);
+      mainBytes += entry.bytes;
+    }
+
+    private void evictEldest(LinkedHashMap<Key, Entry> entries) {
+      Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+      Entry entry = eldest.next().getValue();
+      eldest.remove();
+      if (entries == main) mainBytes -= entry.bytes;
+      else windowBytes -= entry.bytes;
+      evictions.increment();
+    }
+
+    private void remove(Key key) {
+      Entry old = window.remove(key);
+      if (old != null) windowBytes -= old.bytes;
+      old = main.remove(key);
+      if (old != null) mainBytes -= old.bytes;
+    }
+
+    synchronized int size() {
+      return window.size() + main.size();
+    }
+
+    synchronized long bytes() {
+      return windowBytes + mainBytes;
+    }
+
+    synchronized void clear() {
+      window.clear();
+      main.clear();
+      windowBytes = 0;
+      mainBytes = 0;
+    }
+  }
+
+  // Count-min sketch of how often each key hash was asked for: four 4 bit counters per hash, in
+  // rows of a table a power of two wide, the smallest of them the estimate. Once there have been
+  // ten increments per counter of a row every count is halved, so old popularity fades
+  private static final class FrequencySketch {
+    private static final long[] SEEDS = { 0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L };
+
+    private final long[] table; // 16 counters per long
+    private final int mask;
+    private final int sampleSize;
+    private int increments;
+
+    FrequencySketch(long expectedEntries) {
+      int width = Integer.highestOneBit((int)Math.max(16, Math.min(1 << 24, expectedEntries)) - 1) << 1;
+      this.table = new long[width * SEEDS.length / 16];
+      this.mask = width - 1;
+      this.sampleSize = 10 * width;
+    }
+
+    int frequency(int hash) {
+      int frequency = 15;
+      for (int row = 0; row < SEEDS.length; row++) frequency = Math.min(frequency, counter(row, index(hash, row)));
+      return frequency;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for (int row = 0; row < SEEDS.length; row++) {
+        int index = index(hash, row);
+        if (counter(row, index) == 15) continue;
+        int slot = row * (mask + 1) + index;
+        table[slot >>> 4] += 1L << ((slot & 15) << 2);
+        added = true;
+      }
+      if (added && ++increments == sampleSize) halve();
+    }
+
+    private int counter(int row, int index) {
+      int slot = row * (mask + 1) + index;
+      return (int)(table[slot >>> 4] >>> ((slot & 15) << 2)) & 15;
+    }
+
+    private int index(int hash, int row) {
+      long mixed = (hash + SEEDS[row]) * SEEDS[row];
+      return (int)(mixed >>> 32) & mask;
+    }
+
+    // Every counter to half its count, shifting all 16 of a long at once
+    private void halve() {
+      for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+      increments /= 2;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import computation.contextfreegrammar.*;
+
+// Recognizes a word of a CNF grammar as it arrives, one symbol at a time, without knowing its length.
+//
+// The CYK chart is filled column by column: symbol j brings the spans (i, j) for i = j down to 1,
+// each reading spans (i, k) of earlier columns and (k + 1, j) of the new one, so after every
+// symbol the chart is complete for the prefix read so far and isInLanguage() can answer for it.
+// Alongside the spans, the new column also gets the prefix sets P(i, j): the variables deriving
+// some word that starts with symbols i..j. Once the start variable is not in P(1, j), no more
+// symbols can make the input a word of the language, so accept() returns false and reading stops.
+// Only the newest column of prefix sets is kept, as later columns never read older ones.
+// A recognizer holds the state of one input, so it belongs to one caller: don't share it between threads.
+public class StreamingRecognizer {
+
+  private final CompiledGrammar grammar;
+  private final int cellWords;
+  private int n;
+  private boolean viable;
+  private boolean onlySpaces = true;
+
+  private long[][] columns = new long[16][]; // columns[j - 1][(i - 1) * cellWords..]: span (i, j)
+  private long[][] rowMasks = new long[16][]; // rowMasks[i - 1], bit k: span (i, k) is non-empty
+  private long[][] columnMasks = new long[16][]; // columnMasks[j - 1], bit i - 1: span (i, j) is non-empty
+
+  public StreamingRecognizer(ContextFreeGrammar cfg) {
+    this.grammar = GrammarCache.getShared().compileOptimized(cfg);
+    this.cellWords = grammar.getCellWords();
+    this.viable = grammar.isInChomskyNormalForm() &&
+      (grammar.isEmptyWordInLanguage() || grammar.isGenerating(grammar.getStartVariable()));
+  }
+
+  // Number of symbols accepted so far
+  public int getLength() {
+    return n;
+  }
+
+  // False once no continuation of the symbols read so far is in the language
+  public boolean isViable() {
+    return viable;
+  }
+
+  // Whether the symbols read so far form a word of the language
+  public boolean isInLanguage() {
+
+    if (n == 0) return grammar.isEmptyWordInLanguage();
+
+    if (!viable || onlySpaces) return false;
+
+    return Bits.contains(columns[n - 1], grammar.getStartVariable());
+  }
+
+  // Reads one more symbol and returns isViable(). Once that is false the input is rejected
+  // whatever follows, and further symbols are ignored
+  public boolean accept(Symbol symbol) {
+
+    if (!viable) return false;
+
+    final int j = ++n;
+    if (j > columns.length) grow();
+    if (!symbol.equals(new Terminal(' '))) onlySpaces = false;
+
+    long[] column = new long[j * cellWords];
+    long[] prefixes = new long[j * cellWords];
+    long[] columnMask = new long[Bits.words(j)];
+    long[] prefixMask = new long[Bits.words(j)];
+    long[] seeds = new long[cellWords];
+    rowMasks[j - 1] = new long[Bits.words(columns.length + 1)];
+    columns[j - 1] = column;
+    columnMasks[j - 1] = columnMask;
+
+    // 1. The symbol on its own: the variables producing it, and all their left ancestors
+    int t = grammar.getTerminalId(symbol);
+    if (t >= 0) {
+      System.arraycopy(grammar.getTerminalRules(t), 0, column, (j - 1) * cellWords, cellWords);
+      System.arraycopy(grammar.getTerminalRules(t), 0, seeds, 0, cellWords);
+    }
+    closeInto(seeds, prefixes, j, j, prefixMask);
+    markIfNonEmpty(column, j, j, columnMask);
+
+    // 2. Longer spans ending here, shortest first. (i, j) splits into a finished span (i, k)
+    // and either the span (k + 1, j), for the chart, or the prefix set of (k + 1, j)
+    for (int i = j - 1; i >= 1; i--) {
+      combine(i, j, column, columnMask, column, (i - 1) * cellWords);
+      markIfNonEmpty(column, i, j, columnMask);
+
+      Arrays.fill(seeds, 0);
+      combine(i, j, prefixes, prefixMask, seeds, 0);
+      closeInto(seeds, prefixes, i, j, prefixMask);
+    }
+
+    // 3. Only a start variable that can still be completed keeps the input alive
+    viable = Bits.contains(prefixes, grammar.getStartVariable());
+    return viable;
+  }
+
+  // Reads symbols until they run out or the input is rejected, then returns isInLanguage()
+  public boolean acceptAll(Iterator<? extends Symbol> symbols) {
+    while (viable && symbols.hasNext()) accept(symbols.next());
+    return isInLanguage();
+  }
+
+  // As acceptAll, reading each char as a Terminal. Stops reading as soon as the input is rejected
+  public boolean acceptAll(Reader reader) throws IOException {
+    int c;
+    while (viable && (c = reader.read()) >= 0) accept(new Terminal((char)c));
+    return isInLanguage();
+  }
+
+  public boolean acceptAll(ReadableByteChannel channel, Charset charset) throws IOException {
+    return acceptAll(Channels.newReader(channel, charset.newDecoder(), -1));
+  }
+
+  // For each split k of (i, j) with span (i, k) non-empty and set (k + 1, j) of right non-empty,
+  // adds the left hand sides of every rule A -> BC with B in span (i, k) and C in that set
+  private void combine(int i, int j, long[] right, long[] rightMask, long[] target, int at) {
+    long[] rowMask = rowMasks[i - 1];
+    for (int word = i >>> 6; word <= (j - 1) >>> 6; word++) {
+      long splits = rowMask[word] & rightMask[word];
+      while (splits != 0) {
+        int k = (word << 6) + Long.numberOfTrailingZeros(splits);
+        splits &= splits - 1;
+        long[] left = columns[k - 1];
+        int leftAt = (i - 1) * cellWords;
+        int rightAt = k * cellWords;
+
+        for (int w = 0; w < cellWords; w++) {
+          long leftVariables = left[leftAt + w];
+          while (leftVariables != 0) {
+            int b = (w << 6) + Long.numberOfTrailingZeros(leftVariables);
+            leftVariables &= leftVariables - 1;
+
+            int[] rights = grammar.getPairRights(b);
+            long[] lhs = grammar.getPairLhs(b);
+            for (int pair = 0; pair < rights.length; pair++) {
+              int c = rights[pair];
+              if ((right[rightAt + (c >>> 6)] & (1L << c)) == 0) continue;
+              int lhsAt = pair * cellWords;
+              for (int x = 0; x < cellWords; x++) target[at + x] |= lhs[lhsAt + x];
+            }
+          }
+        }
+      }
+    }
+  }
+
+  // Prefix set (i, j) = the left ancestors of every seed
+  private void closeInto(long[] seeds, long[] prefixes, int i, int j, long[] prefixMask) {
+    int at = (i - 1) * cellWords;
+    boolean any = false;
+    for (int w = 0; w < cellWords; w++) {
+      long bits = seeds[w];
+      while (bits != 0) {
+        int b = (w << 6) + Long.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+        long[] ancestors = grammar.getLeftAncestors(b);
+        for (int x = 0; x < cellWords; x++) prefixes[at + x] |= ancestors[x];
+        any = true;
+      }
+    }
+    if (any) prefixMask[(i - 1) >>> 6] |= 1L << (i - 1);
+  }
+
+  private void markIfNonEmpty(long[] column, int i, int j, long[] columnMask) {
+    int at = (i - 1) * cellWords;
+    for (int w = 0; w < cellWords; w++) {
+      if (column[at + w] != 0) {
+        rowMasks[i - 1][j >>> 6] |= 1L << j;
+        columnMask[(i - 1) >>> 6] |= 1L << (i - 1);
+        return;
+      }
+    }
+  }
+
+  // Makes room for twice as many columns, and row masks long enough for them
+  private void grow() {
+    int capacity = columns.length * 2;
+    columns = Arrays.copyOf(columns, capacity);
+    columnMasks = Arrays.copyOf(columnMasks, capacity);
+    rowMasks = Arrays.copyOf(rowMasks, capacity);
+    for (int i = 0; i < n - 1; i++) rowMasks[i] = Arrays.copyOf(rowMasks[i], Bits.words(capacity + 1));
+  }
+}
@@ -0,0 +1,240 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import computation.contextfreegrammar.*;
+
+// Random words of a CNF grammar with an exact length, for benchmarks, load tests and
+// differential testing of the parsers against each other.
+//
+// Positive words are sampled uniformly from the parse trees of length n: count(A, l), the number
+// of trees of variable A deriving a word of length l, is tabled for every l up to the longest
+// length asked for so far, and a word is built top down, each span (A, l) choosing its rule
+// A -> BC and split k with probability count(B, k) * count(C, l - k) / count(A, l).
+// For an unambiguous grammar that is uniform over the words of length n; an ambiguous one
+// favours words in proportion to their number of parse trees.
+// Counts grow exponentially with l, so each length l keeps them as doubles scaled by a common
+// factor 2^scale[l], which only the ratios above need.
+//
+// Negative words are positive ones with a single mutation (a symbol substituted, deleted or
+// inserted, or two neighbours swapped), kept only once CYKParser rejects them.
+// The same seed and the same calls give the same words. A generator holds its own random state
+// and tables, so it belongs to one caller: don't share it between threads.
+public class WordGenerator {
+
+  public enum Mutation { SUBSTITUTE, DELETE, INSERT, SWAP }
+
+  // Tries at mutating a positive word before nextNegative gives up
+  public static final int MAX_ATTEMPTS = 100;
+
+  private final ContextFreeGrammar cfg;
+  private final CompiledGrammar grammar;
+  private final SplittableRandom random;
+  private final CYKParser parser = new CYKParser(Integer.MAX_VALUE, null);
+  private final int[][] terminalsOf; // terminal ids t of every rule A -> t
+  private final Terminal[] alphabet;
+
+  // Scale of a length without words, low enough that its terms always scale to 0
+  private static final int NO_WORDS = Integer.MIN_VALUE / 4;
+
+  private int tabled; // counts are known for lengths 1..tabled
+  private double[][] counts = new double[1][]; // counts[l][A] = count(A, l) / 2^scale[l]
+  private int[] scale = new int[1];
+
+  // The rule and split chosen by the last call to choose
+  private int chosenRule;
+  private int chosenK;
+
+  public WordGenerator(ContextFreeGrammar cfg, long seed) {
+    this.cfg = cfg;
+    this.grammar = GrammarCache.getShared().compile(cfg);
+    if (!grammar.isInChomskyNormalForm()) throw new IllegalArgumentException("The grammar is not in Chomsky normal form");
+    this.random = new SplittableRandom(seed);
+
+    this.alphabet = new Terminal[grammar.getTerminalCount()];
+    int[] produced = new int[grammar.getVariableCount()];
+    for (int t = 0; t < alphabet.length; t++) {
+      alphabet[t] = grammar.getTerminal(t);
+      for (int a = 0; a < produced.length; a++) {
+        if (Bits.contains(grammar.getTerminalRules(t), a)) produced[a]++;
+      }
+    }
+    this.terminalsOf = new int[produced.length][];
+    for (int a = 0; a < produced.length; a++) terminalsOf[a] = new int[produced[a]];
+    Arrays.fill(produced, 0);
+    for (int t = 0; t < alphabet.length; t++) {
+      for (int a = 0; a < produced.length; a++) {
+        if (Bits.contains(grammar.getTerminalRules(t), a)) terminalsOf[a][produced[a]++] = t;
+      }
+    }
+  }
+
+  // A word of length n, uniform over the parse trees of that length, or null if the language has none
+  public Word next(int n) {
+
+    if (n < 0) throw new IllegalArgumentException("Negative length " + n);
+
+    if (n == 0) return grammar.isEmptyWordInLanguage() ? Word.emptyWord : null;
+
+    ensureTabled(n);
+    if (counts[n][grammar.getStartVariable()] == 0) return null;
+
+    // Spans waiting to be expanded, as a stack of (variable, length). The leftmost is expanded
+    // first, so terminals come out in order, and the stack never holds more than n spans
+    Terminal[] symbols = new Terminal[n];
+    int written = 0;
+    int[] pendingVariable = new int[n];
+    int[] pendingLength = new int[n];
+    int pending = 0;
+    pendingVariable[pending] = grammar.getStartVariable();
+    pendingLength[pending++] = n;
+    while (pending > 0) {
+      int a = pendingVariable[--pending], l = pendingLength[pending];
+      if (l == 1) {
+        int[] terminals = terminalsOf[a];
+        symbols[written++] = alphabet[terminals[random.nextInt(terminals.length)]];
+        continue;
+      }
+      choose(a, l);
+      pendingVariable[pending] = grammar.getBinaryRight(chosenRule);
+      pendingLength[pending++] = l - chosenK;
+      pendingVariable[pending] = grammar.getBinaryLeft(chosenRule);
+      pendingLength[pending++] = chosenK;
+    }
+
+    return new Word(symbols);
+  }
+
+  // A word not in the language, one random mutation away from a word of length n.
+  // Null if the language has no word of length n, or no mutation was rejected in MAX_ATTEMPTS tries
+  public Word nextNegative(int n) {
+    return nextNegative(n, Mutation.values());
+  }
+
+  // As nextNegative, with each mutation picked from the given kinds only
+  public Word nextNegative(int n, Mutation... kinds) {
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      Word positive = next(n);
+      if (positive == null) return null;
+      Word mutated = mutate(positive, kinds[random.nextInt(kinds.length)]);
+      if (!parser.isInLanguage(cfg, mutated)) return mutated;
+    }
+    return null;
+  }
+
+  // w with one mutation of the given kind at a random position, which may still be in the language.
+  // A mutation with nothing to act on (deleting from the empty word, or substituting or swapping
+  // where every candidate is the same symbol) returns w unchanged
+  public Word mutate(Word w, Mutation kind) {
+    int n = w.length();
+    Symbol[] symbols = new Symbol[n];
+    for (int i = 0; i < n; i++) symbols[i] = w.get(i);
+
+    switch (kind) {
+      case SUBSTITUTE:
+        if (n == 0 || alphabet.length < 2) return w;
+        int at = random.nextInt(n);
+        Terminal other = alphabet[random.nextInt(alphabet.length - 1)];
+        // Skip over the symbol already there, so every other terminal is equally likely
+        symbols[at] = other.equals(symbols[at]) ? alphabet[alphabet.length - 1] : other;
+        return new Word(symbols);
+
+      case DELETE:
+        if (n == 0) return w;
+        int removed = random.nextInt(n);
+        Symbol[] shorter = new Symbol[n - 1];
+        System.arraycopy(symbols, 0, shorter, 0, removed);
+        System.arraycopy(symbols, removed + 1, shorter, removed, n - removed - 1);
+        return shorter.length == 0 ? Word.emptyWord : new Word(shorter);
+
+      case INSERT:
+        if (alphabet.length == 0) return w;
+        int inserted = random.nextInt(n + 1);
+        Symbol[] longer = new Symbol[n + 1];
+        System.arraycopy(symbols, 0, longer, 0, inserted);
+        longer[inserted] = alphabet[random.nextInt(alphabet.length)];
+        System.arraycopy(symbols, inserted, longer, inserted + 1, n - inserted);
+        return new Word(longer);
+
+      default:
+        // Swap the pair starting at a random position, or the first differing pair after it
+        if (n < 2) return w;
+        int start = random.nextInt(n - 1);
+        for (int i = 0; i < n - 1; i++) {
+          int p = (start + i) % (n - 1);
+          if (!symbols[p].equals(symbols[p + 1])) {
+            Symbol swapped = symbols[p];
+            symbols[p] = symbols[p + 1];
+            symbols[p + 1] = swapped;
+            return new Word(symbols);
+          }
+        }
+        return w;
+    }
+  }
+
+  // Picks the rule A -> BC and the length k of B for span (a, l) into chosenRule and chosenK, weighted
+  // by count(B, k) * count(C, l - k). Their sum is count(a, l), which is known, so one pass will do.
+  // Should rounding leave the target just short of the end, the last choice with any weight stays
+  private void choose(int a, int l) {
+    int[] rules = grammar.getBinaryRules(a);
+    double target = random.nextDouble() * counts[l][a];
+    for (int k = 1; k < l; k++) {
+      double factor = Math.scalb(1.0, scale[k] + scale[l - k] - scale[l]);
+      if (factor == 0) continue;
+      double[] left = counts[k], right = counts[l - k];
+      for (int rule : rules) {
+        double weight = left[grammar.getBinaryLeft(rule)] * right[grammar.getBinaryRight(rule)] * factor;
+        if (weight == 0) continue;
+        chosenRule = rule;
+        chosenK = k;
+        target -= weight;
+        if (target < 0) return;
+      }
+    }
+  }
+
+  // Extends the count tables up to length n, each length from the shorter ones
+  private void ensureTabled(int n) {
+    if (n <= tabled) return;
+    if (n >= counts.length) {
+      int capacity = Math.max(n + 1, counts.length * 2);
+      counts = Arrays.copyOf(counts, capacity);
+      scale = Arrays.copyOf(scale, capacity);
+    }
+
+    final int variables = grammar.getVariableCount();
+    for (int l = tabled + 1; l <= n; l++) {
+      double[] row = new double[variables];
+
+      if (l == 1) {
+        for (int a = 0; a < variables; a++) row[a] = terminalsOf[a].length;
+      } else {
+        // Sum over k relative to the largest scale of the pairs (k, l - k), so no term overflows
+        int top = NO_WORDS;
+        for (int k = 1; k < l; k++) top = Math.max(top, scale[k] + scale[l - k]);
+        for (int k = 1; k < l; k++) {
+          double factor = Math.scalb(1.0, scale[k] + scale[l - k] - top);
+          if (factor == 0) continue;
+          double[] left = counts[k], right = counts[l - k];
+          for (int rule = 0; rule < grammar.getBinaryRuleCount(); rule++) {
+            row[grammar.getBinaryLhs(rule)] += left[grammar.getBinaryLeft(rule)] * right[grammar.getBinaryRight(rule)] * factor;
+          }
+        }
+        scale[l] = top;
+      }
+
+      // Bring the largest count of the row back to [1, 2)
+      double max = 0;
+      for (double count : row) max = Math.max(max, count);
+      if (max > 0) {
+        int exponent = Math.getExponent(max);
+        for (int a = 0; a < variables; a++) row[a] = Math.scalb(row[a], -exponent);
+        scale[l] += exponent;
+      } else {
+        scale[l] = NO_WORDS;
+      }
+      counts[l] = row;
+    }
+    tabled = n;
+  }
+}
@@ -0,0 +1,24 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the gc profiler always on, so every result comes with its allocation
+// rate (gc.alloc.rate.norm is bytes per operation). Takes the usual JMH options, for example
+// -p engine=CYKParser -p length=1000 to run a slice of them
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    new Runner(new OptionsBuilder()
+      .parent(new CommandLineOptions(args))
+      .include(ParserBenchmark.class.getSimpleName())
+      .include(RejectedBenchmark.class.getSimpleName())
+      .addProfiler(GCProfiler.class)
+      .build())
+      .run();
+  }
+}
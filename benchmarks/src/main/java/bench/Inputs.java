@@ -0,0 +1,100 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import computation.contextfreegrammar.*;
+
+// The grammars and words the benchmarks parse. MyGrammar lives in the default package, which
+// a named package cannot import, so its grammars are made through reflection.
+// Words are built, not random, so every run and every engine parses the same input. The input is
+// accepted, rejected by the parse, or filtered: rejected before the parse by the linear time
+// filters of CompiledGrammar.mayDerive, which cost the same for every engine.
+// - the MyGrammar grammars: expressions such as 1+1*0+x..., ending on an operator when filtered.
+//   Their languages are exactly the words the filters let through, so none is rejected by a parse
+// - simpleCNF: 0^k 1^k, with one 1 too many when rejected, the middle 0 and 1 swapped when filtered
+// - parentheses, S -> SS | (S) | x, not in CNF: x^k wrapped in parentheses, x^k) when rejected
+final class Inputs {
+
+  private static final String ATOMS = "10x";
+  private static final String OPERATORS = "+*";
+
+  private Inputs() {
+  }
+
+  // grammar is makeGrammar, makeGrammar2, simpleCNF or parentheses
+  static ContextFreeGrammar grammar(String grammar) {
+    if (grammar.equals("simpleCNF")) return ContextFreeGrammar.simpleCNF();
+    if (grammar.equals("parentheses")) return parentheses();
+    try {
+      return (ContextFreeGrammar)Class.forName("MyGrammar").getMethod(grammar).invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException("No grammar " + grammar, e);
+    }
+  }
+
+  // A word of about length symbols for input accepted, rejected or filtered. Expressions have
+  // exactly length symbols, 0^k 1^k the even length at or just below it (at least 2) and one more
+  // when rejected, parentheses at least 2
+  static Word word(String grammar, int length, String input) {
+    if (!input.equals("accepted") && !input.equals("rejected") && !input.equals("filtered")) {
+      throw new IllegalArgumentException("No input " + input);
+    }
+    if (grammar.equals("simpleCNF")) return new Word(balanced(length, input));
+    if (grammar.equals("parentheses")) return new Word(nested(length, input));
+    if (input.equals("rejected")) {
+      throw new IllegalArgumentException("No word of " + grammar + " gets past the filters and is rejected");
+    }
+    return new Word(expression(length, input.equals("accepted")));
+  }
+
+  private static String expression(int length, boolean accepted) {
+    StringBuilder word = new StringBuilder(length);
+    // An odd length is atoms joined by operators, an even one starts with a negated atom
+    if (length % 2 == 0) word.append('-');
+    word.append('1');
+    for (int i = 0; word.length() < length; i++) {
+      word.append(OPERATORS.charAt(i % OPERATORS.length()));
+      word.append(ATOMS.charAt(i % ATOMS.length()));
+    }
+    if (!accepted) word.setCharAt(length - 1, '+');
+    return word.toString();
+  }
+
+  private static String balanced(int length, String input) {
+    int k = Math.max(1, length / 2);
+    StringBuilder word = new StringBuilder(2 * k + 1);
+    for (int i = 0; i < k; i++) word.append('0');
+    for (int i = 0; i < k; i++) word.append('1');
+    if (input.equals("rejected")) word.append('1');
+    if (input.equals("filtered")) {
+      word.setCharAt(k - 1, '1');
+      word.setCharAt(k, '0');
+    }
+    return word.toString();
+  }
+
+  // (x^k) when accepted, x^k) when rejected: every pair of neighbours in it can meet, so only the
+  // parse finds the unmatched parenthesis. )x^k when filtered
+  private static String nested(int length, String input) {
+    int k = Math.max(1, length - (input.equals("accepted") ? 2 : 1));
+    StringBuilder word = new StringBuilder(k + 2);
+    if (input.equals("accepted")) word.append('(');
+    if (input.equals("filtered")) word.append(')');
+    for (int i = 0; i < k; i++) word.append('x');
+    if (!input.equals("filtered")) word.append(')');
+    return word.toString();
+  }
+
+  private static ContextFreeGrammar parentheses() {
+    Variable s = new Variable('S');
+    Terminal open = new Terminal('('), close = new Terminal(')'), x = new Terminal('x');
+    List<Rule> rules = new ArrayList<Rule>(Arrays.asList(
+      new Rule(s, new Word(s, s)),
+      new Rule(s, new Word(open, s, close)),
+      new Rule(s, new Word(x))));
+    return new ContextFreeGrammar(new HashSet<Variable>(Arrays.asList(s)), new HashSet<Terminal>(Arrays.asList(open, close, x)), rules, s);
+  }
+}
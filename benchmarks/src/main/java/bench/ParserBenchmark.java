@@ -0,0 +1,64 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import computation.contextfreegrammar.*;
+import computation.parser.*;
+import computation.parsetree.*;
+
+// isInLanguage and generateParseTree of each engine, grammar, word length and accepted or filtered
+// input (see Inputs), as throughput and as average time. Run through BenchmarkMain to get the
+// allocation rate too. Words the parse itself rejects are in RejectedBenchmark, the MyGrammar
+// grammars have none.
+//
+// The engines sit in the default package, so they are made through reflection as IParsers.
+// Expect the long words to be slow: CYKParser is cubic in the length, and Parser can backtrack
+// a long way on a rejected word. Pass -p length=1,10,100,1000 for a quicker run.
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+  @Param({ "Parser", "CYKParser" })
+  public String engine;
+
+  @Param({ "makeGrammar", "makeGrammar2", "simpleCNF", "parentheses" })
+  public String grammar;
+
+  @Param({ "1", "10", "100", "1000", "10000" })
+  public int length;
+
+  @Param({ "accepted", "filtered" })
+  public String input;
+
+  private IParser parser;
+  private ContextFreeGrammar cfg;
+  private Word word;
+
+  @Setup
+  public void setUp() throws ReflectiveOperationException {
+    parser = (IParser)Class.forName(engine).getDeclaredConstructor().newInstance();
+    cfg = Inputs.grammar(grammar);
+    word = Inputs.word(grammar, length, input);
+
+    // Fail fast on a word that does not test what its name says
+    if (parser.isInLanguage(cfg, word) != input.equals("accepted")) {
+      throw new IllegalStateException(engine + " gives the wrong answer for " + grammar + ", " + input + " word of length " + length);
+    }
+  }
+
+  @Benchmark
+  public boolean isInLanguage() {
+    return parser.isInLanguage(cfg, word);
+  }
+
+  @Benchmark
+  public ParseTreeNode generateParseTree() {
+    return parser.generateParseTree(cfg, word);
+  }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import computation.contextfreegrammar.*;
+import computation.parser.*;
+import computation.parsetree.*;
+
+// As ParserBenchmark, for words that get past the filters of CompiledGrammar.mayDerive and are
+// rejected by the parse (see Inputs), so each engine does its full work on them. Only simpleCNF
+// and parentheses have such words. The rejected x^k) of parentheses, an ambiguous grammar, is the
+// worst case of Parser's search.
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RejectedBenchmark {
+
+  @Param({ "Parser", "CYKParser" })
+  public String engine;
+
+  @Param({ "simpleCNF", "parentheses" })
+  public String grammar;
+
+  @Param({ "1", "10", "100", "1000", "10000" })
+  public int length;
+
+  private IParser parser;
+  private ContextFreeGrammar cfg;
+  private Word word;
+
+  @Setup
+  public void setUp() throws ReflectiveOperationException {
+    parser = (IParser)Class.forName(engine).getDeclaredConstructor().newInstance();
+    cfg = Inputs.grammar(grammar);
+    word = Inputs.word(grammar, length, "rejected");
+
+    // Fail fast on a word that the filters stop, or that is not rejected
+    Object cache = Class.forName("GrammarCache").getMethod("getShared").invoke(null);
+    Object compiled = cache.getClass().getMethod("compileCnf", ContextFreeGrammar.class).invoke(cache, cfg);
+    if (!(Boolean)compiled.getClass().getMethod("mayDerive", Word.class).invoke(compiled, word) || parser.isInLanguage(cfg, word)) {
+      throw new IllegalStateException(grammar + " word of length " + length + " is not rejected by the parse of " + engine);
+    }
+  }
+
+  @Benchmark
+  public boolean isInLanguage() {
+    return parser.isInLanguage(cfg, word);
+  }
+
+  @Benchmark
+  public ParseTreeNode generateParseTree() {
+    return parser.generateParseTree(cfg, word);
+  }
+}